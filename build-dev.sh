@@ -4,4 +4,4 @@ rm -rf out/*
 cp -R src/vm out
 ./javacc/bin/jjtree -NOSTATIC -OUTPUT_DIRECTORY=out src/claus_parser.jjt
 ./javacc/bin/javacc -NOSTATIC -OUTPUT_DIRECTORY=out out/claus_parser.jj
-javac out/vm/mm/*.java out/vm/*.java out/*.java
+javac out/vm/mm/*.java out/vm/jit/*.java out/vm/*.java out/*.java
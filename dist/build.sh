@@ -7,4 +7,4 @@ cp test/input.dat out/input.dat
 ./javacc/bin/jjtree -NOSTATIC -OUTPUT_DIRECTORY=out src/claus_parser.jjt
 ./javacc/bin/javacc -NOSTATIC -OUTPUT_DIRECTORY=out out/claus_parser.jj
 
-javac -cp .:junit-4.10.jar:junit-dep-4.10.jar out/vm/mm/*.java out/vm/*.java out/*.java
+javac -cp .:junit-4.10.jar:junit-dep-4.10.jar out/vm/mm/*.java out/vm/jit/*.java out/vm/*.java out/*.java
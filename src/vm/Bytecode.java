@@ -9,7 +9,7 @@ public class Bytecode {
 
     public static Map<String, BytecodeInstruction> strings2bytecodes = new HashMap<String, BytecodeInstruction>() {
         {
-            // instruction name     bytecode        numOfArgs
+            // instruction name     bytecode        numOfArgs   jump
             put("syscall", new BytecodeInstruction(int2Byte(0x01), 1));
             put("call", new BytecodeInstruction(int2Byte(0x02), 1));
             put("return", new BytecodeInstruction(int2Byte(0x03), 0));
@@ -28,45 +28,79 @@ public class Bytecode {
             put("mul-int", new BytecodeInstruction(int2Byte(0x10), 0));
             put("div-int", new BytecodeInstruction(int2Byte(0x11), 0));
             put("mod-int", new BytecodeInstruction(int2Byte(0x12), 0));
-            put("push-arg", new BytecodeInstruction(int2Byte(0x13), 1));
+            put("push-arg", new BytecodeInstruction(int2Byte(0x13), 2));
             put("pop-arg", new BytecodeInstruction(int2Byte(0x14), 1));
             put("set-bytes", new BytecodeInstruction(int2Byte(0x15), 1));
             put("new-int", new BytecodeInstruction(int2Byte(0x16), 1));
             put("new-str", new BytecodeInstruction(int2Byte(0x17), 1));
             put("new-arr", new BytecodeInstruction(int2Byte(0x18), 1));
-            put("jmp", new BytecodeInstruction(int2Byte(0x19), 1));
-            put("jmp-eq-int", new BytecodeInstruction(int2Byte(0x1A), 1));
-            put("jmp-neq-int", new BytecodeInstruction(int2Byte(0x1B), 1));
-            put("jmp-gt-int", new BytecodeInstruction(int2Byte(0x1C), 1));
-            put("jmp-ge-int", new BytecodeInstruction(int2Byte(0x1D), 1));
-            put("jmp-lt-int", new BytecodeInstruction(int2Byte(0x1E), 1));
-            put("jmp-le-int", new BytecodeInstruction(int2Byte(0x1F), 1));
+            put("jmp", new BytecodeInstruction(int2Byte(0x19), 1, true));
+            put("jmp-eq-int", new BytecodeInstruction(int2Byte(0x1A), 1, true));
+            put("jmp-neq-int", new BytecodeInstruction(int2Byte(0x1B), 1, true));
+            put("jmp-gt-int", new BytecodeInstruction(int2Byte(0x1C), 1, true));
+            put("jmp-ge-int", new BytecodeInstruction(int2Byte(0x1D), 1, true));
+            put("jmp-lt-int", new BytecodeInstruction(int2Byte(0x1E), 1, true));
+            put("jmp-le-int", new BytecodeInstruction(int2Byte(0x1F), 1, true));
             put("cast-str-int", new BytecodeInstruction(int2Byte(0x21), 0));
             put("get-field-dyn", new BytecodeInstruction(int2Byte(0x22), 0));
             put("set-field-dyn", new BytecodeInstruction(int2Byte(0x23), 0));
             put("cast-int-str", new BytecodeInstruction(int2Byte(0x24), 0));
+
+            // superinstructions, produced by Util.optimizeBytecode
+            put("get-self-field", new BytecodeInstruction(int2Byte(0x25), 1));
+            put("pop-arg-pair", new BytecodeInstruction(int2Byte(0x26), 2));
+            put("add-int-return", new BytecodeInstruction(int2Byte(0x27), 0));
+            put("sub-int-return", new BytecodeInstruction(int2Byte(0x28), 0));
+            put("mul-int-return", new BytecodeInstruction(int2Byte(0x29), 0));
+            put("div-int-return", new BytecodeInstruction(int2Byte(0x2A), 0));
+            put("mod-int-return", new BytecodeInstruction(int2Byte(0x2B), 0));
+
+            // quickened instructions, the interpreter rewrites instructions to them in the decoded instruction stream
+            put("new-quick", new BytecodeInstruction(int2Byte(0x2C), 1));
+            put("call-quick", new BytecodeInstruction(int2Byte(0x2D), 1));
+            put("new-str-quick", new BytecodeInstruction(int2Byte(0x2E), 1));
         }
     };
 
     public static Map<BytecodeInstruction, String> bytecodes2strings = new HashMap<BytecodeInstruction, String>();
     public static Map<Byte, String> bytes2strings = new HashMap<Byte, String>();
 
-    {
+    private static BytecodeInstruction[] bytes2bytecodes = new BytecodeInstruction[256];
+
+    static {
         for (Map.Entry<String, BytecodeInstruction> entry : strings2bytecodes.entrySet()) {
             bytecodes2strings.put(entry.getValue(), entry.getKey());
             bytes2strings.put(entry.getValue().code, entry.getKey());
+            bytes2bytecodes[entry.getValue().code & 0xFF] = entry.getValue();
         }
     }
 
+    /**
+     * @return instruction with the given bytecode or null if there is no such instruction
+     */
+    public static BytecodeInstruction instruction(byte code) {
+        return bytes2bytecodes[code & 0xFF];
+    }
+
     public static class BytecodeInstruction {
 
         public byte code;
 
         public int numOfArguments;
 
+        /**
+         * Jump instructions have a relative byte offset as their argument.
+         */
+        public boolean jump;
+
         public BytecodeInstruction(byte code, int numOfArguments) {
+            this(code, numOfArguments, false);
+        }
+
+        public BytecodeInstruction(byte code, int numOfArguments, boolean jump) {
             this.code = code;
             this.numOfArguments = numOfArguments;
+            this.jump = jump;
         }
     }
 
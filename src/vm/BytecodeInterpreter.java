@@ -1,9 +1,11 @@
 package vm;
 
-import vm.mm.CodePointer;
+import vm.jit.JIT;
 import vm.mm.MM;
 import vm.mm.Pointer;
 
+import java.util.Arrays;
+
 import static vm.Util.*;
 
 public class BytecodeInterpreter {
@@ -12,266 +14,430 @@ public class BytecodeInterpreter {
 
     private MM mm;
 
+    // inline caches of quickened call sites
+    private InlineCache[] inlineCaches;
+    private int numOfInlineCaches;
+
+    // bytes of string constants of quickened new-str instructions
+    private byte[][] strings;
+    private int numOfStrings;
+
+    private JIT jit;
+
     public BytecodeInterpreter(ClausVM vm, MM mm) {
         this.vm = vm;
         this.mm = mm;
+        this.inlineCaches = new InlineCache[16];
+        this.strings = new byte[16][];
+    }
+
+    public void jit(JIT jit) {
+        this.jit = jit;
+    }
+
+    public InlineCache inlineCache(int slot) {
+        return inlineCaches[slot];
+    }
+
+    public byte[] string(int slot) {
+        return strings[slot];
+    }
+
+    /**
+     * Rewrites call to call-quick with a new inline cache.
+     *
+     * @param pc instruction index of the call operand
+     * @return slot of the inline cache
+     */
+    public int quickenCall(int pc) {
+        int[] code = mm.instructions();
+        if (code[pc - 1] == 0x2D) {
+            return code[pc];
+        }
+
+        if (numOfInlineCaches == inlineCaches.length) {
+            inlineCaches = Arrays.copyOf(inlineCaches, inlineCaches.length * 2);
+        }
+        inlineCaches[numOfInlineCaches] = new InlineCache(mm.constantSymbol(code[pc]), mm.methodsVersion());
+
+        code[pc - 1] = 0x2D;
+        code[pc] = numOfInlineCaches;
+        return numOfInlineCaches++;
+    }
+
+    /**
+     * Rewrites new-str to new-str-quick with bytes of the string.
+     *
+     * @param pc instruction index of the new-str operand
+     * @return slot of the string bytes
+     */
+    public int quickenNewString(int pc) {
+        int[] code = mm.instructions();
+        if (code[pc - 1] == 0x2E) {
+            return code[pc];
+        }
+
+        if (numOfStrings == strings.length) {
+            strings = Arrays.copyOf(strings, strings.length * 2);
+        }
+        strings[numOfStrings] = str2bytes((String) mm.constant(code[pc]));
+
+        code[pc - 1] = 0x2E;
+        code[pc] = numOfStrings;
+        return numOfStrings++;
+    }
+
+    /**
+     * Rewrites new to new-quick with ID of the class. Classes live in the metaspace and never move, so the class is
+     * found by ID with no name lookup and no update by GC.
+     *
+     * @param pc instruction index of the new operand
+     * @return ID of the class
+     */
+    public int quickenNew(int pc) {
+        int id = tryQuickenNew(pc);
+        if (id < 0) {
+            throw new RuntimeException("Class '" + mm.constant(mm.instructions()[pc]) + "' not found.");
+        }
+        return id;
+    }
+
+    /**
+     * Like quickenNew, for compilers which may see a new of a class defined only later.
+     *
+     * @return ID of the class or -1 if the class is not defined yet
+     */
+    public int tryQuickenNew(int pc) {
+        int[] code = mm.instructions();
+        if (code[pc - 1] == 0x2C) {
+            return code[pc];
+        }
+
+        Pointer clazz = vm.getClazz((String) mm.constant(code[pc]));
+        if (clazz == null) {
+            return -1;
+        }
+
+        code[pc - 1] = 0x2C;
+        code[pc] = clazz.$c().id();
+        return code[pc];
     }
 
+    /**
+     * Runs the decoded instruction stream from the current program counter until the outermost frame or a frame called
+     * from compiled code returns.
+     * Stack is accessed by raw words, operands of an instruction are held in locals and results of binary operations
+     * overwrite the top of the stack in place.
+     * While the heap profiler samples allocations, MM gets the program counter of every instruction.
+     */
     public void interpret() {
+        int[] code = mm.instructions();
+        int pc = mm.getPC();
+        boolean sampling = mm.profiler() != null && mm.profiler().sampling();
+
         boolean interpret = true;
         while (interpret) {
-            byte instruction = mm.getByteFromBC();
+            if (sampling) {
+                mm.setPC(pc);
+            }
+            int instruction = code[pc++];
             switch (instruction) {
                 // syscall syscall-number
                 case 0x01:
-                    int syscall = mm.getIntFromBC();
-                    Syscalls.ints2calls.get(syscall).call();
+                    int syscall = code[pc++];
+                    vm.syscall(syscall).call();
                     break;
                 // call selector-index
                 case 0x02:
-                    String methodSelector = (String) mm.constant(mm.getIntFromBC());
-                    Pointer receiver = mm.popPointer();
-                    vm.callMethod(receiver, methodSelector);
+                    quickenCall(pc);
+                    // executing the quickened instruction
+                    pc--;
                     break;
                 // return
                 case 0x03:
-                    CodePointer jumpAddress = mm.discardFrame();
-                    if (jumpAddress == null) {
+                    int returnAddress = mm.discardFrame();
+                    if (returnAddress == MM.END_OF_PROGRAM) {
                         interpret = false;
                     } else {
-                        mm.popPointer();
-                        jump(jumpAddress);
+                        mm.popWord();
+                        pc = returnAddress;
+                        interpret = returnAddress != MM.RETURN_TO_COMPILED;
                     }
                     break;
                 // return-top
                 case 0x04:
-                    Pointer returnValue = mm.popPointer();
-                    jumpAddress = mm.discardFrame();
-                    if (jumpAddress == null) {
+                    int returnValue = mm.popWord();
+                    returnAddress = mm.discardFrame();
+                    if (returnAddress == MM.END_OF_PROGRAM) {
                         interpret = false;
                     } else {
-                        mm.popPointer();
-                        mm.pushPointer(returnValue);
-                        jump(jumpAddress);
+                        // replacing the receiver
+                        mm.topWord(returnValue);
+                        pc = returnAddress;
+                        interpret = returnAddress != MM.RETURN_TO_COMPILED;
                     }
                     break;
                 // new clazz-pointer
                 case 0x05:
-                    Pointer clazz = vm.getClazz((String) mm.constant(mm.getIntFromBC()));
-                    mm.protect(clazz);
-                    Pointer obj = vm.newObject(clazz, clazz.$c().objectSize());
-                    mm.unprotect(clazz);
-                    mm.pushPointer(obj);
-
-//                    Pointer clazz = mm.getPointerFromBC();
-//                    mm.protect(clazz);
-//                    Pointer obj = vm.newObject(clazz, clazz.$c().objectSize());
-//                    mm.unprotect(clazz);
-//                    mm.pushPointer(obj);
+                    quickenNew(pc);
+                    pc--;
                     break;
                 // get-field
                 case 0x06:
-                    int index = mm.popInt();
-                    obj = mm.popPointer();
-                    mm.pushPointer(obj.$p().field(index));
+                    int index = mm.popWord();
+                    Pointer obj = new Pointer(mm.topWord(), mm);
+                    mm.topWord(obj.$p().field(index).address);
                     break;
                 // set-field
                 case 0x07:
                     Pointer setValue = mm.popPointer();
-                    index = mm.popInt();
+                    index = mm.popWord();
                     obj = mm.popPointer();
                     obj.$p().field(index, setValue);
                     break;
                 // push-ref pointer
                 case 0x08:
-                    mm.pushPointer(mm.getPointerFromBC());
+                    mm.pushWord(code[pc++]);
                     break;
                 // pop-ref
                 case 0x09:
-                    mm.popPointer();
+                    mm.popWord();
                     break;
                 // push-int number
                 case 0x0A:
-                    mm.pushInt(mm.getIntFromBC());
+                    mm.pushInt(code[pc++]);
                     break;
                 // pop-int
                 case 0xB:
-                    mm.popInt();
+                    mm.popWord();
                     break;
                 // push-local index
                 case 0x0C:
-                    index = mm.getIntFromBC();
-                    obj = mm.popPointer();
-                    mm.local(index, obj);
+                    mm.storeLocal(code[pc++]);
                     break;
                 // pop-local index
                 case 0x0D:
-                    index = mm.getIntFromBC();
-                    mm.pushPointer(mm.local(index));
+                    mm.loadLocal(code[pc++]);
                     break;
                 // add-int
                 case 0x0E:
-                    Pointer operand2 = mm.popPointer();
-                    Pointer operand1 = mm.popPointer();
-                    int sum = bytes2int(operand1.$b().bytes()) + bytes2int(operand2.$b().bytes());
-
-                    mm.pushPointer(vm.newInteger(int2bytes(sum)));
+                    int operand2 = vm.intValue(mm.popWord());
+                    int operand1 = vm.intValue(mm.topWord());
+                    mm.topWord(vm.newIntegerWord(operand1 + operand2));
                     break;
                 // sub-int
                 case 0x0F:
-                    operand2 = mm.popPointer();
-                    operand1 = mm.popPointer();
-                    int diff = bytes2int(operand1.$b().bytes()) - bytes2int(operand2.$b().bytes());
-                    mm.pushPointer(vm.newInteger(int2bytes(diff)));
+                    operand2 = vm.intValue(mm.popWord());
+                    operand1 = vm.intValue(mm.topWord());
+                    mm.topWord(vm.newIntegerWord(operand1 - operand2));
                     break;
                 // mul-int
                 case 0x10:
-                    operand2 = mm.popPointer();
-                    operand1 = mm.popPointer();
-                    int product = bytes2int(operand1.$b().bytes()) * bytes2int(operand2.$b().bytes());
-                    mm.pushPointer(vm.newInteger(int2bytes(product)));
+                    operand2 = vm.intValue(mm.popWord());
+                    operand1 = vm.intValue(mm.topWord());
+                    mm.topWord(vm.newIntegerWord(operand1 * operand2));
                     break;
                 // div-int
                 case 0x11:
-                    operand2 = mm.popPointer();
-                    operand1 = mm.popPointer();
-                    int division = bytes2int(operand1.$b().bytes()) / bytes2int(operand2.$b().bytes());
-                    mm.pushPointer(vm.newInteger(int2bytes(division)));
+                    operand2 = vm.intValue(mm.popWord());
+                    operand1 = vm.intValue(mm.topWord());
+                    mm.topWord(vm.newIntegerWord(operand1 / operand2));
                     break;
                 // mod-int
                 case 0x12:
-                    operand2 = mm.popPointer();
-                    operand1 = mm.popPointer();
-                    int modulo = bytes2int(operand1.$b().bytes()) % bytes2int(operand2.$b().bytes());
-                    mm.pushPointer(vm.newInteger(int2bytes(modulo)));
+                    operand2 = vm.intValue(mm.popWord());
+                    operand1 = vm.intValue(mm.topWord());
+                    mm.topWord(vm.newIntegerWord(operand1 % operand2));
                     break;
                 // push-arg index val-pointer
                 case 0x13:
-                    index = mm.getIntFromBC();
-                    obj = mm.getPointerFromBC();
+                    index = code[pc++];
+                    obj = new Pointer(code[pc++], mm);
                     mm.arg(index, obj);
                     break;
                 // pop-arg index
                 case 0x14:
-                    index = mm.getIntFromBC();
-                    mm.pushPointer(mm.arg(index));
+                    mm.loadArg(code[pc++]);
                     break;
                 // set-bytes number
                 case 0x15:
-                    int number = mm.getIntFromBC();
+                    int number = code[pc++];
                     obj = mm.popPointer();
                     obj.$b().bytes(int2bytes(number));
                     break;
                 // new-int
                 case 0x16:
-                    obj = vm.newInteger(int2bytes(mm.getIntFromBC()));
-                    mm.pushPointer(obj);
+                    mm.pushWord(vm.newIntegerWord(code[pc++]));
                     break;
                 // new-str
                 case 0x17:
-                    obj = vm.newString(str2bytes((String) mm.constant(mm.getIntFromBC())));
-                    mm.pushPointer(obj);
+                    quickenNewString(pc);
+                    pc--;
                     break;
                 // new-arr
                 case 0x18:
-                    mm.pushPointer(vm.newArray((Integer) mm.constant(mm.getIntFromBC())));
+                    mm.pushPointer(vm.newArray((Integer) mm.constant(code[pc++])));
                     break;
                 // jmp
                 case 0x19:
-                    int offset = mm.getIntFromBC();
-                    debug("jmp " + offset);
-                    jump(mm.getPC().arith(offset));
+                    int target = code[pc];
+                    if (target < pc) {
+                        jit.countBackedge(pc - 1);
+                    }
+                    pc = target;
                     break;
                 // jmp-eq-int
                 case 0x1A:
-                    offset = mm.getIntFromBC();
-                    int i1 = bytes2int(mm.popPointer().$b().bytes());
-                    int i2 = bytes2int(mm.popPointer().$b().bytes());
+                    target = code[pc++];
+                    int i1 = vm.intValue(mm.popWord());
+                    int i2 = vm.intValue(mm.popWord());
                     if (i1 == i2) {
-                        jump(mm.getPC().arith(offset));
+                        pc = target;
                     }
                     break;
                 // jmp-neq-int
                 case 0x1B:
-                    offset = mm.getIntFromBC();
-                    i1 = bytes2int(mm.popPointer().$b().bytes());
-                    i2 = bytes2int(mm.popPointer().$b().bytes());
+                    target = code[pc++];
+                    i1 = vm.intValue(mm.popWord());
+                    i2 = vm.intValue(mm.popWord());
                     if (i1 != i2) {
-                        jump(mm.getPC().arith(offset));
+                        pc = target;
                     }
                     break;
                 // jmp-gt-int
                 case 0x1C:
-                    offset = mm.getIntFromBC();
-                    i2 = bytes2int(mm.popPointer().$b().bytes());
-                    i1 = bytes2int(mm.popPointer().$b().bytes());
+                    target = code[pc++];
+                    i2 = vm.intValue(mm.popWord());
+                    i1 = vm.intValue(mm.popWord());
                     if (i1 > i2) {
-                        jump(mm.getPC().arith(offset));
+                        pc = target;
                     }
                     break;
                 // jmp-ge-int
                 case 0x1D:
-                    offset = mm.getIntFromBC();
-                    i2 = bytes2int(mm.popPointer().$b().bytes());
-                    i1 = bytes2int(mm.popPointer().$b().bytes());
-                    debug("jmp-ge-int: " + i1 + " >= " + i2);
+                    target = code[pc++];
+                    i2 = vm.intValue(mm.popWord());
+                    i1 = vm.intValue(mm.popWord());
+                    if (DEBUG) {
+                        debug("jmp-ge-int: " + i1 + " >= " + i2);
+                    }
                     if (i1 >= i2) {
                         debug("jmp-ge-int jumped");
-                        jump(mm.getPC().arith(offset));
+                        pc = target;
                     }
                     break;
                 // jmp-lt-int
                 case 0x1E:
-                    offset = mm.getIntFromBC();
-                    i2 = bytes2int(mm.popPointer().$b().bytes());
-                    i1 = bytes2int(mm.popPointer().$b().bytes());
+                    target = code[pc++];
+                    i2 = vm.intValue(mm.popWord());
+                    i1 = vm.intValue(mm.popWord());
                     if (i1 < i2) {
-                        jump(mm.getPC().arith(offset));
+                        pc = target;
                     }
                     break;
                 // jmp-le-int
                 case 0x1F:
-                    offset = mm.getIntFromBC();
-                    i2 = bytes2int(mm.popPointer().$b().bytes());
-                    i1 = bytes2int(mm.popPointer().$b().bytes());
+                    target = code[pc++];
+                    i2 = vm.intValue(mm.popWord());
+                    i1 = vm.intValue(mm.popWord());
                     if (i1 <= i2) {
-                        jump(mm.getPC().arith(offset));
+                        pc = target;
                     }
                     break;
                 // cast-str-int
                 case 0x21:
                     Pointer intAsString = mm.popPointer();
-                    byte[] converted = int2bytes(Integer.valueOf(bytes2str(intAsString.$b().bytes())));
-                    Pointer newInt = vm.newInteger(converted);
-                    mm.pushPointer(newInt);
+                    mm.pushWord(vm.newIntegerWord(Integer.valueOf(bytes2str(intAsString.$b().bytes()))));
                     break;
                 // get-field-dyn
                 case 0x22:
-                    index = bytes2int(mm.popPointer().$b().bytes());
-                    obj = mm.popPointer();
-                    mm.pushPointer(obj.$p().field(index));
+                    index = vm.intValue(mm.popWord());
+                    obj = new Pointer(mm.topWord(), mm);
+                    mm.topWord(obj.$p().field(index).address);
                     break;
                 // set-field-dyn
                 case 0x23:
                     setValue = mm.popPointer();
-                    index = bytes2int(mm.popPointer().$b().bytes());
+                    index = vm.intValue(mm.popWord());
                     obj = mm.popPointer();
                     obj.$p().field(index, setValue);
                     break;
                 // cast-int-str
                 case 0x24:
-                    Pointer stringAsInt = mm.popPointer();
-                    converted = str2bytes(String.valueOf(bytes2int(stringAsInt.$b().bytes())));
+                    byte[] converted = str2bytes(String.valueOf(vm.intValue(mm.popWord())));
                     Pointer newStr = vm.newString(converted);
                     mm.pushPointer(newStr);
                     break;
+                // get-self-field index
+                case 0x25:
+                    obj = new Pointer(mm.argWord(0), mm);
+                    mm.pushWord(obj.$p().field(code[pc++]).address);
+                    break;
+                // pop-arg-pair index index
+                case 0x26:
+                    mm.loadArg(code[pc++]);
+                    mm.loadArg(code[pc++]);
+                    break;
+                // add-int-return, sub-int-return, mul-int-return, div-int-return, mod-int-return
+                case 0x27:
+                case 0x28:
+                case 0x29:
+                case 0x2A:
+                case 0x2B:
+                    operand2 = vm.intValue(mm.popWord());
+                    operand1 = vm.intValue(mm.popWord());
+                    returnValue = vm.newIntegerWord(arithmetic(instruction, operand1, operand2));
+                    returnAddress = mm.discardFrame();
+                    if (returnAddress == MM.END_OF_PROGRAM) {
+                        interpret = false;
+                    } else {
+                        // replacing the receiver
+                        mm.topWord(returnValue);
+                        pc = returnAddress;
+                        interpret = returnAddress != MM.RETURN_TO_COMPILED;
+                    }
+                    break;
+                // new-quick class-id
+                case 0x2C:
+                    // classes live in the metaspace and never move, the class pointer stays valid across the allocation
+                    Pointer clazz = vm.getClazz(code[pc++]);
+                    mm.pushPointer(vm.newObject(clazz, clazz.$c().objectSize()));
+                    break;
+                // call-quick cache-slot
+                case 0x2D:
+                    InlineCache cache = inlineCaches[code[pc++]];
+                    Pointer receiver = mm.popPointer();
+                    // the return address is taken from MM when the new frame is created
+                    mm.setPC(pc);
+                    vm.callMethod(receiver, cache.selector(), cache);
+                    pc = mm.getPC();
+                    break;
+                // new-str-quick string-slot
+                case 0x2E:
+                    mm.pushPointer(vm.newString(strings[code[pc++]]));
+                    break;
                 default:
                     throw new RuntimeException("Unknown instruction.");
             }
         }
     }
 
-    public void jump(CodePointer where) {
+    private static int arithmetic(int instruction, int operand1, int operand2) {
+        switch (instruction) {
+            case 0x27:
+                return operand1 + operand2;
+            case 0x28:
+                return operand1 - operand2;
+            case 0x29:
+                return operand1 * operand2;
+            case 0x2A:
+                return operand1 / operand2;
+            default:
+                return operand1 % operand2;
+        }
+    }
+
+    public void jump(int where) {
         mm.setPC(where);
     }
 
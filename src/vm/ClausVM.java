@@ -1,10 +1,16 @@
 package vm;
 
+import vm.jit.ClosureCompiler;
+import vm.jit.CompiledMethod;
+import vm.jit.JIT;
 import vm.mm.*;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static java.util.Arrays.asList;
 import static vm.Util.*;
@@ -15,6 +21,12 @@ public class ClausVM {
 
     private BytecodeInterpreter interpreter;
 
+    private JIT jit;
+
+    private ExecutionMode mode;
+
+    private ClosureCompiler closures;
+
     private Pointer metaclass;
 
     private Pointer classOfObject;
@@ -25,18 +37,46 @@ public class ClausVM {
 
     private Pointer classOfInteger;
 
+    private MethodCache methodCache;
+
+    // classes indexed by their IDs, filled on lookup
+    private Pointer[] classesById = new Pointer[0];
+
+    // syscalls indexed by their numbers, the built-in ones followed by the primitives registered on this VM
+    private Syscall[] syscallTable = new Syscall[0];
+
+    // numbers of the primitives registered on this VM, they are not shared through Syscalls
+    private Map<String, Integer> syscallNumbers = new HashMap<String, Integer>();
+
     private List<BufferedReader> inputHandles;
     private List<BufferedWriter> outputHandles;
 
+    /**
+     * @param args bytes of the metaspace, optional
+     */
     public static void main(String... args) {
-        new ClausVM(new MM(1024, 1024, 1024));
+        int metaspaceSize = args.length > 0 ? Integer.parseInt(args[0]) : MM.METASPACE_SIZE;
+        new ClausVM(new MM(1024, 1024, 1024, metaspaceSize));
     }
 
     public ClausVM(MM mm) {
+        this(mm, ExecutionMode.INTERPRETER);
+    }
+
+    public ClausVM(MM mm, ExecutionMode mode) {
         this.mm = mm;
 
+        this.mode = mode;
+
         this.interpreter = new BytecodeInterpreter(this, mm);
 
+        this.closures = new ClosureCompiler(mm, interpreter);
+
+        this.jit = new JIT(this, mm, interpreter);
+        interpreter.jit(jit);
+
+        this.methodCache = new MethodCache(mm.methodsVersion());
+
         syscalls();
 
         bootstrap();
@@ -48,8 +88,12 @@ public class ClausVM {
 
     public void run(CodePointer entryPoint, int numOfLocals) {
         mm.newFrame(numOfLocals);
-        mm.setPC(entryPoint);
-        interpreter.interpret();
+        if (mode == ExecutionMode.CLOSURES) {
+            closures.program(mm.instructionIndex(entryPoint)).invoke(jit.runtime());
+        } else {
+            mm.setPC(mm.instructionIndex(entryPoint));
+            interpreter.interpret();
+        }
     }
 
     private final void bootstrap() {
@@ -90,23 +134,16 @@ public class ClausVM {
         library.createTextFileWriterClass();
     }
 
+    /**
+     * Fields of the new object are NULL.
+     */
     public Pointer newObject(Pointer clazz, int size) {
-        Pointer newObject = mm.alloc(mm.pointerIndexedObjectSize(size));
+        Pointer newObject = new Pointer(mm.allocObject(ObjectKind.POINTER_INDEXED, size, clazz), mm);
 
         // debug("CREATING OBJECT AT " + newObject.address + " OF " + clazz.$c().name());
 
-        if (newObject == null) {
-            throw new RuntimeException("Not enough memory!");
-        }
-
-        newObject.$().marker(MM.MARKER);
-        newObject.$().gcState(GCState.NORMAL);
-        newObject.$().kind(ObjectKind.POINTER_INDEXED);
-        newObject.$().size(size);
-        newObject.$().clazz(clazz);
-
-        for (int i = 0; i < size; i++) {
-            newObject.$p().field(i, mm.NULL);
+        if (mm.profiler() != null) {
+            mm.profiler().allocated(newObject);
         }
 
         return newObject;
@@ -123,23 +160,11 @@ public class ClausVM {
     public Pointer newClazz(String name, int numOfFields, Pointer superclass) {
         int CLASS_SIZE = 5;
 
-        Pointer newClass = mm.alloc(mm.pointerIndexedObjectSize(CLASS_SIZE));
+        // classes are never moved
+        Pointer newClass = new Pointer(mm.allocMetaspaceObject(CLASS_SIZE, metaclass != null ? metaclass : mm.NULL), mm);
 
         debug("CREATING CLASS '" + name + "' AT " + newClass.address);
 
-        if (newClass == null) {
-            throw new RuntimeException("Not enough memory!");
-        }
-
-        newClass.$().marker(MM.MARKER);
-        newClass.$().gcState(GCState.NORMAL);
-        newClass.$().kind(ObjectKind.POINTER_INDEXED);
-        newClass.$().size(CLASS_SIZE);
-
-        if (metaclass != null) {
-            newClass.$().clazz(metaclass);
-        }
-
         if (superclass == null) {
             superclass = classOfObject;
         }
@@ -165,16 +190,48 @@ public class ClausVM {
         return null;
     }
 
+    /**
+     * Classes are in the metaspace, so the returned pointer stays valid after GC.
+     */
+    public Pointer getClazz(int id) {
+        if (id < classesById.length && classesById[id] != null) {
+            return classesById[id];
+        }
+
+        for (Pointer clazz : mm.getClasses()) {
+            if (clazz.$c().id() == id) {
+                if (id >= classesById.length) {
+                    classesById = Arrays.copyOf(classesById, Math.max(id + 1, classesById.length * 2));
+                }
+                classesById[id] = clazz;
+                return clazz;
+            }
+        }
+
+        return null;
+    }
+
     /**
      * @return method index
      */
     public int newMethod(String selector, CodePointer bytecode, int numOfLocals) {
-        Method m = new Method(selector, bytecode, numOfLocals);
+        Method m = new Method(selector, mm.symbol(selector), bytecode, mm.instructionIndex(bytecode), numOfLocals);
+        jit.register(m);
         return mm.addMethod(m);
     }
 
+    /**
+     * Creates a method whose sends run the primitive directly, without creating a frame. The primitive gets the receiver
+     * on top of the stack and the arguments below it, its result replaces the receiver.
+     */
+    public int newMethod(String selector, CodePointer bytecode, int numOfLocals, String intrinsic) {
+        int index = newMethod(selector, bytecode, numOfLocals);
+        mm.method(index).intrinsic(primitive(intrinsic));
+        return index;
+    }
+
     public Pointer newMethodDictionary(List<Integer> methods) {
-        Pointer methodDictionary = newObject(getClazz("Array"), methods.size());
+        Pointer methodDictionary = new Pointer(mm.allocMetaspaceObject(methods.size(), getClazz("Array")), mm);
 
         debug("CREATING DICTIONARY AT " + methodDictionary.address);
 
@@ -192,60 +249,179 @@ public class ClausVM {
     }
 
     public Pointer newString(byte[] str) {
-        Pointer newString = mm.alloc(mm.byteIndexedObjectSize(str.length));
+        Pointer newString = new Pointer(mm.allocObject(str, classOfString), mm);
 
-        debug("CREATING STRING '" + new String(str) + "' AT " + newString.address);
-
-        if (newString == null) {
-            throw new RuntimeException("Not enough memory!");
+        if (DEBUG) {
+            debug("CREATING STRING '" + new String(str) + "' AT " + newString.address);
         }
 
-        newString.$().marker(MM.MARKER);
-        newString.$().gcState(GCState.NORMAL);
-        newString.$().kind(ObjectKind.BYTE_INDEXED);
-        newString.$().size(str.length);
-        newString.$().clazz(classOfString);
-        newString.$b().bytes(str);
+        if (mm.profiler() != null) {
+            mm.profiler().allocated(newString);
+        }
 
         return newString;
     }
 
-    public Pointer newInteger(byte[] integer) {
-        Pointer newInteger = mm.alloc(mm.byteIndexedObjectSize(MM.WORD_SIZE));
+    /**
+     * @return tagged small integer if the value fits into it, otherwise a newly allocated Integer object
+     */
+    public Pointer newInteger(int integer) {
+        if (MM.isSmallInteger(integer)) {
+            return mm.smallInteger(integer);
+        }
 
-        debug("CREATING INT '" + bytes2int(integer) + "' AT " + newInteger.address);
+        return newInteger(int2bytes(integer));
+    }
 
-        if (newInteger == null) {
-            throw new RuntimeException("Not enough memory!");
+    /**
+     * Same as newInteger(int) but returns the raw word to be stored on the stack.
+     */
+    public int newIntegerWord(int integer) {
+        if (MM.isSmallInteger(integer)) {
+            return MM.tagSmallInteger(integer);
+        }
+
+        return newInteger(int2bytes(integer)).address;
+    }
+
+    /**
+     * Always allocates a new Integer object on the heap.
+     */
+    public Pointer newInteger(byte[] integer) {
+        Pointer newInteger = new Pointer(mm.allocObject(integer, classOfInteger), mm);
+
+        if (DEBUG) {
+            debug("CREATING INT '" + bytes2int(integer) + "' AT " + newInteger.address);
         }
 
-        newInteger.$().marker(MM.MARKER);
-        newInteger.$().gcState(GCState.NORMAL);
-        newInteger.$().kind(ObjectKind.BYTE_INDEXED);
-        newInteger.$().size(MM.WORD_SIZE);
-        newInteger.$().clazz(classOfInteger);
-        newInteger.$b().bytes(integer);
+        if (mm.profiler() != null) {
+            mm.profiler().allocated(newInteger);
+        }
 
         return newInteger;
     }
 
+    /**
+     * @return value of a tagged small integer or of an Integer object
+     */
+    public int intValue(Pointer integer) {
+        if (integer.isSmallInteger()) {
+            return integer.smallIntegerValue();
+        }
+
+        return bytes2int(integer.$b().bytes());
+    }
+
+    /**
+     * @return value of a raw stack word holding a tagged small integer or a pointer to an Integer object
+     */
+    public int intValue(int word) {
+        if (MM.isTaggedSmallInteger(word)) {
+            return MM.untagSmallInteger(word);
+        }
+
+        return intValue(new Pointer(word, mm));
+    }
+
+    /**
+     * @return class of the object, tagged small integers are instances of Integer
+     */
+    public Pointer classOf(Pointer obj) {
+        if (obj.isSmallInteger()) {
+            return classOfInteger;
+        }
+
+        return obj.$().clazz();
+    }
+
+    public JIT jit() {
+        return jit;
+    }
 
     public void callMethod(Pointer obj, String selector) {
-        debug("CALLING METHOD '" + selector + "' ON " + obj.address);
+        callMethod(obj, mm.symbol(selector), null);
+    }
+
+    /**
+     * @param selector symbol of the selector
+     * @param cache    inline cache of the call site, null if there is none
+     */
+    public void callMethod(Pointer obj, int selector, InlineCache cache) {
+        if (DEBUG) {
+            debug("CALLING METHOD '" + mm.symbolName(selector) + "' ON " + obj.address);
+        }
+
+        // classes are never moved, their addresses identify them
+        Pointer objectClass = classOf(obj);
+
+        Method method = null;
+        if (cache != null) {
+            method = cache.lookup(objectClass.address, mm.methodsVersion());
+        }
 
-        Pointer objectClass = obj.$().clazz();
-        Method method = lookupMethod(objectClass, selector);
+        if (method == null) {
+            method = lookupMethod(objectClass, selector);
+
+            if (method != null && cache != null && !cache.isMegamorphic()) {
+                cache.add(objectClass.address, method);
+            }
+        }
 
         if (method != null) {
+            PrimitiveSyscall intrinsic = method.intrinsic();
+            if (intrinsic != null) {
+                mm.pushPointer(obj);
+                int result = intrinsic.handler().call(mm.stack(), mm.stackPointer() - intrinsic.arity());
+                if (result == Primitive.NO_RESULT) {
+                    mm.popWord();
+                } else {
+                    // replacing the receiver like return-top does
+                    mm.topWord(result);
+                }
+                return;
+            }
+
+            method.countInvocation();
+            CompiledMethod compiled = jit.compiled(method);
+            if (compiled == null && mode == ExecutionMode.CLOSURES) {
+                compiled = closures.compiled(method);
+            }
+
             mm.pushPointer(obj);
             mm.newFrame(method.numOfLocals());
-            interpreter.jump(method.bytecodePointer());
+            if (compiled != null) {
+                // compiled method returns only after discarding its frame, the caller continues where it was
+                int pc = mm.getPC();
+                compiled.invoke(jit.runtime());
+                mm.setPC(pc);
+            } else {
+                interpreter.jump(method.entryPoint());
+            }
         } else {
-            throw new RuntimeException("Method '" + selector + "' not found in class.");
+            throw new RuntimeException("Method '" + mm.symbolName(selector) + "' not found in class.");
         }
     }
 
     public Method lookupMethod(Pointer clazz, String selector) {
+        return lookupMethod(clazz, mm.symbol(selector));
+    }
+
+    /**
+     * Looks the method up in the VM-wide method cache first, walks the class hierarchy only on a cache miss.
+     */
+    private Method lookupMethod(Pointer clazz, int selector) {
+        Method m = methodCache.lookup(clazz.address, selector, mm.methodsVersion());
+        if (m == null) {
+            m = findMethod(clazz, selector);
+            if (m != null) {
+                methodCache.add(clazz.address, selector, m);
+            }
+        }
+
+        return m;
+    }
+
+    private Method findMethod(Pointer clazz, int selector) {
         Pointer current = clazz;
 //        debug("LOOKUP " + clazz.$c().name() + " OF " + selector);
         while (!current.isNull()) {
@@ -261,7 +437,7 @@ public class ClausVM {
 
                     Method m = mm.method(methodIndex);
 
-                    if (m.selector().equals(selector)) {
+                    if (m.selectorSymbol() == selector) {
                         return m;
                     }
                 }
@@ -295,7 +471,7 @@ public class ClausVM {
 
                 inputHandles.add(br);
                 int index = inputHandles.indexOf(br);
-                mm.pushPointer(newInteger(int2bytes(index)));
+                mm.pushPointer(newInteger(index));
             }
         });
 
@@ -314,14 +490,14 @@ public class ClausVM {
 
                 outputHandles.add(bw);
                 int index = outputHandles.indexOf(bw);
-                mm.pushPointer(newInteger(int2bytes(index)));
+                mm.pushPointer(newInteger(index));
             }
         });
 
         Syscalls.ints2calls.put(4, new Syscall("close-file-r") {
             @Override
             public void call() {
-                int handle = bytes2int(mm.popPointer().$b().bytes());
+                int handle = intValue(mm.popPointer());
                 Closeable closeable = inputHandles.get(handle);
                 try {
                     closeable.close();
@@ -334,7 +510,7 @@ public class ClausVM {
         Syscalls.ints2calls.put(5, new Syscall("close-file-w") {
             @Override
             public void call() {
-                int handle = bytes2int(mm.popPointer().$b().bytes());
+                int handle = intValue(mm.popPointer());
                 Closeable closeable = outputHandles.get(handle);
                 try {
                     closeable.close();
@@ -347,8 +523,9 @@ public class ClausVM {
         Syscalls.ints2calls.put(6, new Syscall("read-line") {
             @Override
             public void call() {
-                int handle = bytes2int(mm.popPointer().$b().bytes());
+                int handle = intValue(mm.popPointer());
                 BufferedReader br = inputHandles.get(handle);
+                // no pointer is held across the allocation of the string, it needs no handle
                 try {
                     Pointer str = newString(str2bytes(br.readLine()));
                     mm.pushPointer(str);
@@ -362,7 +539,7 @@ public class ClausVM {
             @Override
             public void call() {
                 String str = bytes2str(mm.popPointer().$b().bytes());
-                int handle = bytes2int(mm.popPointer().$b().bytes());
+                int handle = intValue(mm.popPointer());
                 BufferedWriter bw = outputHandles.get(handle);
                 try {
                     bw.write(str + "\n");
@@ -373,33 +550,35 @@ public class ClausVM {
             }
         });
 
-        Syscalls.ints2calls.put(8, new Syscall("print-int") {
+        registerPrimitive(8, "print-int", 1, new Primitive() {
             @Override
-            public void call() {
-                System.out.println(bytes2int(mm.popPointer().$b().bytes()));
+            public int call(int[] stack, int first) {
+                System.out.println(intValue(stack[first]));
+                return NO_RESULT;
             }
         });
 
-        Syscalls.ints2calls.put(9, new Syscall("str-length") {
+        registerPrimitive(9, "str-length", 1, new Primitive() {
             @Override
-            public void call() {
-                mm.pushPointer(newInteger(int2bytes(bytes2str(mm.popPointer().$b().bytes()).length())));
+            public int call(int[] stack, int first) {
+                return newIntegerWord(stringLength(new Pointer(stack[first], mm).$b()));
             }
         });
 
         Syscalls.ints2calls.put(10, new Syscall("str-append") {
             @Override
             public void call() {
+                // both strings are copied out of the heap before the allocation, no handles are needed
                 String str = bytes2str(mm.popPointer().$b().bytes());
                 str += bytes2str(mm.popPointer().$b().bytes());
                 mm.pushPointer(newString(str.getBytes()));
             }
         });
 
-        Syscalls.ints2calls.put(11, new Syscall("arr-length") {
+        registerPrimitive(11, "arr-length", 1, new Primitive() {
             @Override
-            public void call() {
-                mm.pushPointer(newInteger(int2bytes(mm.popPointer().$().size())));
+            public int call(int[] stack, int first) {
+                return newIntegerWord(new Pointer(stack[first], mm).$().size());
             }
         });
 
@@ -408,16 +587,94 @@ public class ClausVM {
             public void call() {
                 String str = bytes2str(mm.popPointer().$b().bytes());
                 String[] splitted = str.split(" ");
-                Pointer arr = newArray(splitted.length);
+
+                // the array is moved by allocations of the strings
+                int scope = mm.openHandleScope();
+                int arr = mm.newHandle(newArray(splitted.length));
                 for (int i = 0; i < splitted.length; i++) {
-                    arr.$p().field(i, newString(str2bytes(splitted[i])));
+                    Pointer part = newString(str2bytes(splitted[i]));
+                    mm.handle(arr).$p().field(i, part);
                 }
-                mm.pushPointer(arr);
+                mm.pushPointer(mm.handle(arr));
+                mm.closeHandleScope(scope);
             }
         });
 
+        link();
+    }
+
+    /**
+     * @return number of characters of the string, the bytes are decoded only if they are not all ASCII
+     */
+    private int stringLength(MM.ByteIndexedObj str) {
+        int size = str.size();
+        for (int i = 0; i < size; i++) {
+            if (str.byteAt(i) < 0) {
+                return bytes2str(str.bytes()).length();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Registers a primitive as a new syscall of this VM only. Its operands stay on the stack while it runs, the
+     * handler reads them directly from the stack array.
+     *
+     * @return number of the syscall
+     */
+    public int registerPrimitive(String name, int arity, Primitive handler) {
+        int number = syscallTable.length;
+        syscallTable = Arrays.copyOf(syscallTable, number + 1);
+        syscallTable[number] = new PrimitiveSyscall(name, arity, handler);
+        syscallNumbers.put(name, number);
+        return number;
+    }
+
+    private void registerPrimitive(int number, String name, int arity, Primitive handler) {
+        Syscalls.ints2calls.put(number, new PrimitiveSyscall(name, arity, handler));
+    }
+
+    /**
+     * Fixes the numbers of the built-in syscalls by building the table of syscalls used by the interpreter.
+     */
+    private void link() {
         // needs to be called
         Syscalls.generateReversedTable();
+
+        int size = 0;
+        for (int number : Syscalls.ints2calls.keySet()) {
+            size = Math.max(size, number + 1);
+        }
+
+        syscallTable = new Syscall[size];
+        for (Map.Entry<Integer, Syscall> entry : Syscalls.ints2calls.entrySet()) {
+            syscallTable[entry.getKey()] = entry.getValue();
+        }
+    }
+
+    public Syscall syscall(int number) {
+        return syscallTable[number];
+    }
+
+    /**
+     * @return number of the syscall, built-in or registered on this VM, or null if there is no such syscall
+     */
+    public Integer syscallNumber(String name) {
+        Integer number = syscallNumbers.get(name);
+        return number != null ? number : Syscalls.calls2ints.get(name);
+    }
+
+    /**
+     * @return primitive registered under the name or null if there is no such primitive
+     */
+    public PrimitiveSyscall primitive(String name) {
+        Integer number = syscallNumber(name);
+        if (number != null && syscallTable[number] instanceof PrimitiveSyscall) {
+            return (PrimitiveSyscall) syscallTable[number];
+        }
+
+        return null;
     }
 
     public abstract class Syscall {
@@ -432,4 +689,54 @@ public class ClausVM {
 
     }
 
+    /**
+     * The operands are GC roots on the stack until the primitive returns, but a pointer read from the stack array goes
+     * stale when the primitive allocates. Handlers read their operands first and allocate last, like newIntegerWord
+     * boxing the result, or hold the operands by handles.
+     */
+    public interface Primitive {
+
+        // top bits 11 are shared by NULL (0xFFFFFFFF), END_OF_PROGRAM and RETURN_TO_COMPILED, but this exact value is
+        // never a valid word: not a pointer, not a small integer (tag 10) and none of those markers
+        int NO_RESULT = 0xC0000000;
+
+        /**
+         * @param stack the stack with operands from stack[first] to the top of the stack
+         * @return word to push or NO_RESULT
+         */
+        int call(int[] stack, int first);
+
+    }
+
+    public class PrimitiveSyscall extends Syscall {
+
+        private int arity;
+
+        private Primitive handler;
+
+        public PrimitiveSyscall(String name, int arity, Primitive handler) {
+            super(name);
+            this.arity = arity;
+            this.handler = handler;
+        }
+
+        public int arity() {
+            return arity;
+        }
+
+        public Primitive handler() {
+            return handler;
+        }
+
+        @Override
+        public void call() {
+            int result = handler.call(mm.stack(), mm.stackPointer() - arity);
+            mm.popWords(arity);
+            if (result != Primitive.NO_RESULT) {
+                mm.pushWord(result);
+            }
+        }
+
+    }
+
 }
@@ -0,0 +1,14 @@
+package vm;
+
+/**
+ * How the VM runs code that has not been compiled by the JIT yet.
+ */
+public enum ExecutionMode {
+
+    // decoded instructions are run by BytecodeInterpreter
+    INTERPRETER,
+
+    // code is compiled to graphs of closures by ClosureCompiler on its first run
+    CLOSURES
+
+}
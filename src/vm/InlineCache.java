@@ -0,0 +1,87 @@
+package vm;
+
+import vm.mm.Method;
+
+/**
+ * Cache of method lookups at a single call site. It is monomorphic after the first send, polymorphic up to SIZE
+ * receiver classes and megamorphic (not caching anymore) after that.
+ * <p/>
+ * Entries are keyed by class addresses, classes are in the metaspace and never move. The whole cache is dropped when a
+ * method dictionary of any class changes.
+ */
+public class InlineCache {
+
+    public static final int SIZE = 4;
+
+    private int[] classes = new int[SIZE];
+
+    private Method[] methods = new Method[SIZE];
+
+    private int count = 0;
+
+    private boolean megamorphic = false;
+
+    private int methodsVersion;
+
+    private int selector;
+
+    public InlineCache(int selector, int methodsVersion) {
+        this.selector = selector;
+        this.methodsVersion = methodsVersion;
+    }
+
+    /**
+     * @return symbol of the selector sent from the call site
+     */
+    public int selector() {
+        return selector;
+    }
+
+    /**
+     * @param clazz address of the receiver class
+     * @return cached method for the receiver class or null on a cache miss
+     */
+    public Method lookup(int clazz, int methodsVersion) {
+        if (this.methodsVersion != methodsVersion) {
+            flush(methodsVersion);
+            return null;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (classes[i] == clazz) {
+                return methods[i];
+            }
+        }
+
+        return null;
+    }
+
+    public void add(int clazz, Method method) {
+        if (count == SIZE) {
+            megamorphic = true;
+            return;
+        }
+
+        classes[count] = clazz;
+        methods[count] = method;
+        count++;
+    }
+
+    public boolean isMegamorphic() {
+        return megamorphic;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    private void flush(int methodsVersion) {
+        this.methodsVersion = methodsVersion;
+        count = 0;
+        megamorphic = false;
+        for (int i = 0; i < SIZE; i++) {
+            methods[i] = null;
+        }
+    }
+
+}
@@ -1,9 +1,13 @@
 package vm;
 
 import vm.mm.CodePointer;
+import vm.mm.HeapProfiler;
 import vm.mm.MM;
 import vm.mm.Pointer;
 
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Arrays;
 
 public class KnapsackManual {
@@ -12,12 +16,28 @@ public class KnapsackManual {
     private MM mm;
     private Pointer knapsackClass;
 
-    public static void main(String[] args) {
+    /**
+     * @param args file to write the heap profile to and bytes of the metaspace, both optional
+     */
+    public static void main(String[] args) throws IOException {
         int memSize = 128 * 32;
-        MM mm = new MM(memSize, memSize, memSize);
+        int metaspaceSize = args.length > 1 ? Integer.parseInt(args[1]) : MM.METASPACE_SIZE;
+        MM mm = new MM(memSize, memSize, memSize, metaspaceSize);
         ClausVM vm = new ClausVM(mm);
 
+        HeapProfiler profiler = null;
+        if (args.length > 0) {
+            profiler = new HeapProfiler(1);
+            mm.profiler(profiler);
+        }
+
         new KnapsackManual(vm, mm);
+
+        if (profiler != null) {
+            PrintWriter out = new PrintWriter(new FileWriter(args[0]));
+            profiler.dump(out);
+            out.close();
+        }
     }
 
     public KnapsackManual(ClausVM vm, MM mm) {
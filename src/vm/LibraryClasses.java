@@ -98,7 +98,7 @@ public class LibraryClasses {
         CodePointer splitMethod = mm.storeCode(Util.translateBytecode(splitBC));
 
         Pointer methodDictionaryOfObject = vm.newMethodDictionary(asList(new Integer[]{
-                vm.newMethod("length", lengthMethod, 0),
+                vm.newMethod("length", lengthMethod, 0, "str-length"),
                 vm.newMethod("append", appendMethod, 0),
                 vm.newMethod("split", splitMethod, 0),
         }));
@@ -138,7 +138,7 @@ public class LibraryClasses {
         CodePointer setMethod = mm.storeCode(Util.translateBytecode(setBC));
 
         Pointer methodDictionaryOfObject = vm.newMethodDictionary(asList(new Integer[]{
-                vm.newMethod("length", lengthMethod, 0),
+                vm.newMethod("length", lengthMethod, 0, "arr-length"),
                 vm.newMethod("get", getMethod, 0),
                 vm.newMethod("set", setMethod, 0),
         }));
@@ -0,0 +1,64 @@
+package vm;
+
+import vm.mm.MM;
+import vm.mm.Method;
+
+/**
+ * VM-wide cache of method lookups, a hash table mapping (class address, selector symbol) to the method found by the
+ * lookup. Colliding entries simply replace each other. Classes never move, so the cache survives GC, and it is flushed
+ * only when a method dictionary changes.
+ */
+public class MethodCache {
+
+    // must be a power of two
+    public static final int SIZE = 1024;
+
+    private int[] classes = new int[SIZE];
+
+    private int[] selectors = new int[SIZE];
+
+    private Method[] methods = new Method[SIZE];
+
+    private int methodsVersion;
+
+    public MethodCache(int methodsVersion) {
+        this.methodsVersion = methodsVersion;
+    }
+
+    /**
+     * @return cached method or null on a cache miss
+     */
+    public Method lookup(int clazz, int selector, int methodsVersion) {
+        if (this.methodsVersion != methodsVersion) {
+            flush(methodsVersion);
+            return null;
+        }
+
+        int i = index(clazz, selector);
+        if (methods[i] != null && classes[i] == clazz && selectors[i] == selector) {
+            return methods[i];
+        }
+
+        return null;
+    }
+
+    public void add(int clazz, int selector, Method method) {
+        int i = index(clazz, selector);
+        classes[i] = clazz;
+        selectors[i] = selector;
+        methods[i] = method;
+    }
+
+    private int index(int clazz, int selector) {
+        // classes are word-aligned
+        return (clazz / MM.WORD_SIZE * 31 + selector) & (SIZE - 1);
+    }
+
+    private void flush(int methodsVersion) {
+        this.methodsVersion = methodsVersion;
+        for (int i = 0; i < SIZE; i++) {
+            methods[i] = null;
+        }
+    }
+
+}
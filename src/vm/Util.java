@@ -1,7 +1,8 @@
 package vm;
 
-import java.util.ArrayList;
-import java.util.List;
+import vm.mm.MM;
+
+import java.util.*;
 
 public class Util {
 
@@ -35,10 +36,13 @@ public class Util {
         return new Byte((byte) b);
     }
 
+    /**
+     * Translates textual bytecode to bytes, common instruction sequences are fused into superinstructions first.
+     */
     public static byte[] translateBytecode(String[] lines) {
         List<Byte> output = new ArrayList<Byte>();
 
-        for (String line : lines) {
+        for (String line : optimizeBytecode(lines)) {
             String[] parts = line.split(" ");
             Bytecode.BytecodeInstruction opcode = Bytecode.strings2bytecodes.get(parts[0]);
 
@@ -61,6 +65,127 @@ public class Util {
         return out2;
     }
 
+    /**
+     * Peephole optimizer replacing instruction sequences by superinstructions:
+     * <ul>
+     * <li>pop-arg 0, push-int N, get-field -> get-self-field N</li>
+     * <li>pop-arg A, pop-arg B -> pop-arg-pair A B</li>
+     * <li>add-int, return-top -> add-int-return (and likewise for the other arithmetic instructions)</li>
+     * </ul>
+     * A sequence is not fused if a jump targets any but its first instruction. Relative offsets of jumps are
+     * recomputed for the shortened code.
+     */
+    public static String[] optimizeBytecode(String[] lines) {
+        int n = lines.length;
+        String[][] instructions = new String[n][];
+        int[] starts = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            instructions[i] = lines[i].split(" ");
+            starts[i + 1] = starts[i] + instructionSize(instructions[i][0]);
+        }
+
+        boolean[] targets = new boolean[n + 1];
+        for (int i = 0; i < n; i++) {
+            if (isJump(instructions[i][0])) {
+                int target = Arrays.binarySearch(starts, starts[i + 1] + Integer.valueOf(instructions[i][1]));
+                if (target >= 0) {
+                    targets[target] = true;
+                }
+            }
+        }
+
+        List<String[]> optimized = new ArrayList<String[]>();
+        // index of the optimized instruction for every original instruction
+        int[] mapping = new int[n + 1];
+        int i = 0;
+        while (i < n) {
+            mapping[i] = optimized.size();
+            int fused = 1;
+
+            if (isGetSelfField(instructions, targets, i)) {
+                optimized.add(new String[]{"get-self-field", instructions[i + 1][1]});
+                fused = 3;
+            } else if (i + 1 < n && !targets[i + 1]
+                    && instructions[i][0].equals("pop-arg") && instructions[i + 1][0].equals("pop-arg")
+                    && !isGetSelfField(instructions, targets, i + 1)) {
+                optimized.add(new String[]{"pop-arg-pair", instructions[i][1], instructions[i + 1][1]});
+                fused = 2;
+            } else if (i + 1 < n && !targets[i + 1] && instructions[i + 1][0].equals("return-top")
+                    && arithmeticReturns.containsKey(instructions[i][0])) {
+                optimized.add(new String[]{arithmeticReturns.get(instructions[i][0])});
+                fused = 2;
+            } else {
+                optimized.add(instructions[i]);
+            }
+
+            for (int j = 1; j < fused; j++) {
+                mapping[i + j] = mapping[i];
+            }
+            i += fused;
+        }
+        mapping[n] = optimized.size();
+
+        int[] newStarts = new int[optimized.size() + 1];
+        for (int j = 0; j < optimized.size(); j++) {
+            newStarts[j + 1] = newStarts[j] + instructionSize(optimized.get(j)[0]);
+        }
+
+        String[] out = new String[optimized.size()];
+        for (i = 0; i < n; i++) {
+            if (isJump(instructions[i][0])) {
+                int target = Arrays.binarySearch(starts, starts[i + 1] + Integer.valueOf(instructions[i][1]));
+                if (target < 0) {
+                    throw new RuntimeException("Jump into the middle of an instruction!");
+                }
+                int jump = mapping[i];
+                int offset = newStarts[mapping[target]] - newStarts[jump + 1];
+                optimized.set(jump, new String[]{instructions[i][0], String.valueOf(offset)});
+            }
+        }
+        for (int j = 0; j < out.length; j++) {
+            out[j] = join(optimized.get(j));
+        }
+
+        return out;
+    }
+
+    private static Map<String, String> arithmeticReturns = new HashMap<String, String>() {
+        {
+            put("add-int", "add-int-return");
+            put("sub-int", "sub-int-return");
+            put("mul-int", "mul-int-return");
+            put("div-int", "div-int-return");
+            put("mod-int", "mod-int-return");
+        }
+    };
+
+    private static boolean isGetSelfField(String[][] instructions, boolean[] targets, int i) {
+        return i + 2 < instructions.length && !targets[i + 1] && !targets[i + 2]
+                && instructions[i][0].equals("pop-arg") && Integer.valueOf(instructions[i][1]) == 0
+                && instructions[i + 1][0].equals("push-int")
+                && instructions[i + 2][0].equals("get-field");
+    }
+
+    private static boolean isJump(String name) {
+        return Bytecode.strings2bytecodes.get(name).jump;
+    }
+
+    private static int instructionSize(String name) {
+        Bytecode.BytecodeInstruction instruction = Bytecode.strings2bytecodes.get(name);
+        if (instruction == null) {
+            throw new RuntimeException("Unknown instruction '" + name + "'.");
+        }
+        return MM.INSTR_SIZE + instruction.numOfArguments * MM.WORD_SIZE;
+    }
+
+    private static String join(String[] parts) {
+        StringBuilder sb = new StringBuilder(parts[0]);
+        for (int i = 1; i < parts.length; i++) {
+            sb.append(' ').append(parts[i]);
+        }
+        return sb.toString();
+    }
+
     public static void writeOutBC(String[] bc) {
         for (String l : bc) {
             System.out.println(l);
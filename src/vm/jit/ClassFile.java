@@ -0,0 +1,257 @@
+package vm.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal class file writer, just enough for classes generated by the JIT: a constant pool of UTF8 strings, integers,
+ * classes and method references and methods with code. Version 49 class files are verified by type inference, so no
+ * stack map frames are needed.
+ */
+public class ClassFile {
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    // JVM opcodes used by the JIT
+    public static final int ICONST_0 = 0x03;
+    public static final int BIPUSH = 0x10;
+    public static final int SIPUSH = 0x11;
+    public static final int LDC_W = 0x13;
+    public static final int ALOAD_0 = 0x2A;
+    public static final int ALOAD_1 = 0x2B;
+    public static final int IFNE = 0x9A;
+    public static final int GOTO = 0xA7;
+    public static final int RETURN = 0xB1;
+    public static final int INVOKEVIRTUAL = 0xB6;
+    public static final int INVOKESPECIAL = 0xB7;
+
+    private static final int VERSION = 49;
+
+    private ByteArrayOutputStream constantsBytes = new ByteArrayOutputStream();
+    private DataOutputStream constants = new DataOutputStream(constantsBytes);
+    private Map<String, Integer> constantIndexes = new HashMap<String, Integer>();
+    private int constantCount = 1;
+
+    private int thisClass;
+    private int superClass;
+    private List<Integer> interfaces = new ArrayList<Integer>();
+
+    private ByteArrayOutputStream methodsBytes = new ByteArrayOutputStream();
+    private DataOutputStream methods = new DataOutputStream(methodsBytes);
+    private int methodCount = 0;
+
+    public ClassFile(String name, String superName, String... interfaceNames) {
+        thisClass = classConstant(name);
+        superClass = classConstant(superName);
+        for (String i : interfaceNames) {
+            interfaces.add(classConstant(i));
+        }
+    }
+
+    public int utf8Constant(String s) {
+        Integer index = constantIndexes.get("U" + s);
+        if (index == null) {
+            try {
+                constants.writeByte(1);
+                constants.writeUTF(s);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            index = newConstant("U" + s);
+        }
+        return index;
+    }
+
+    public int intConstant(int value) {
+        Integer index = constantIndexes.get("I" + value);
+        if (index == null) {
+            try {
+                constants.writeByte(3);
+                constants.writeInt(value);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            index = newConstant("I" + value);
+        }
+        return index;
+    }
+
+    public int classConstant(String name) {
+        Integer index = constantIndexes.get("C" + name);
+        if (index == null) {
+            int nameIndex = utf8Constant(name);
+            try {
+                constants.writeByte(7);
+                constants.writeShort(nameIndex);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            index = newConstant("C" + name);
+        }
+        return index;
+    }
+
+    public int methodConstant(String owner, String name, String descriptor) {
+        String key = "M" + owner + "." + name + descriptor;
+        Integer index = constantIndexes.get(key);
+        if (index == null) {
+            int classIndex = classConstant(owner);
+            int nameIndex = utf8Constant(name);
+            int descriptorIndex = utf8Constant(descriptor);
+            try {
+                constants.writeByte(12);
+                constants.writeShort(nameIndex);
+                constants.writeShort(descriptorIndex);
+                int nameAndType = newConstant("N" + name + descriptor);
+                constants.writeByte(10);
+                constants.writeShort(classIndex);
+                constants.writeShort(nameAndType);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            index = newConstant(key);
+        }
+        return index;
+    }
+
+    public void addMethod(int access, String name, String descriptor, Code code) {
+        int nameIndex = utf8Constant(name);
+        int descriptorIndex = utf8Constant(descriptor);
+        int codeIndex = utf8Constant("Code");
+        byte[] bytes = code.bytes();
+        try {
+            methods.writeShort(access);
+            methods.writeShort(nameIndex);
+            methods.writeShort(descriptorIndex);
+            // one attribute: Code
+            methods.writeShort(1);
+            methods.writeShort(codeIndex);
+            methods.writeInt(12 + bytes.length);
+            methods.writeShort(code.maxStack);
+            methods.writeShort(code.maxLocals);
+            methods.writeInt(bytes.length);
+            methods.write(bytes);
+            // no exception table, no attributes
+            methods.writeShort(0);
+            methods.writeShort(0);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        methodCount++;
+    }
+
+    public byte[] bytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(constantCount);
+            out.write(constantsBytes.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.size());
+            for (int i : interfaces) {
+                out.writeShort(i);
+            }
+            // no fields
+            out.writeShort(0);
+            out.writeShort(methodCount);
+            out.write(methodsBytes.toByteArray());
+            // no attributes
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private int newConstant(String key) {
+        int index = constantCount++;
+        constantIndexes.put(key, index);
+        return index;
+    }
+
+    /**
+     * Bytecode of a single method. Branches are emitted to labels and patched when the label is placed.
+     */
+    public static class Code {
+
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private int maxStack;
+
+        private int maxLocals;
+
+        private Map<Integer, Integer> labels = new HashMap<Integer, Integer>();
+
+        // position of the branch instruction for every patched offset
+        private List<int[]> branches = new ArrayList<int[]>();
+
+        public Code(int maxStack, int maxLocals) {
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        public void op(int opcode) {
+            bytes.write(opcode);
+        }
+
+        public void op(int opcode, int u2) {
+            bytes.write(opcode);
+            bytes.write(u2 >> 8);
+            bytes.write(u2);
+        }
+
+        public void pushInt(ClassFile cf, int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH);
+                bytes.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH, value);
+            } else {
+                op(LDC_W, cf.intConstant(value));
+            }
+        }
+
+        public void label(int label) {
+            labels.put(label, bytes.size());
+        }
+
+        public void branch(int opcode, int label) {
+            branches.add(new int[]{bytes.size(), label});
+            op(opcode, 0);
+        }
+
+        public int size() {
+            return bytes.size();
+        }
+
+        byte[] bytes() {
+            byte[] code = bytes.toByteArray();
+            for (int[] branch : branches) {
+                Integer target = labels.get(branch[1]);
+                if (target == null) {
+                    throw new RuntimeException("Unknown label " + branch[1] + "!");
+                }
+                int offset = target - branch[0];
+                code[branch[0] + 1] = (byte) (offset >> 8);
+                code[branch[0] + 2] = (byte) offset;
+            }
+            return code;
+        }
+
+    }
+
+}
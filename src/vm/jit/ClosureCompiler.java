@@ -0,0 +1,468 @@
+package vm.jit;
+
+import vm.Bytecode;
+import vm.BytecodeInterpreter;
+import vm.mm.MM;
+import vm.mm.Method;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compiles code to a graph of nodes, each holding a closure of its instruction with the operands already decoded and a
+ * direct reference to the node executed next. Running the graph does no opcode dispatch and no operand decoding, and
+ * building it is much cheaper than generating a JVM class, so it pays off even for short runs.
+ * <p/>
+ * Unconditional jumps do not get nodes of their own, their predecessors are linked to the jump target directly. Only
+ * backward jumps of methods are kept, to count backedges for the JIT.
+ */
+public class ClosureCompiler {
+
+    private MM mm;
+
+    private BytecodeInterpreter interpreter;
+
+    // compiled entry points of programs, indexed by their first instruction
+    private Map<Integer, CompiledMethod> programs = new HashMap<Integer, CompiledMethod>();
+
+    public ClosureCompiler(MM mm, BytecodeInterpreter interpreter) {
+        this.mm = mm;
+        this.interpreter = interpreter;
+    }
+
+    /**
+     * @return closure-compiled method, compiled on the first call, or null if the method cannot be compiled
+     */
+    public CompiledMethod compiled(Method method) {
+        CompiledMethod closure = method.closure();
+        if (closure == null && method.compilable()) {
+            closure = compile(method.entryPoint(), method);
+            if (closure == null) {
+                method.compilable(false);
+            }
+            method.closure(closure);
+        }
+
+        return closure;
+    }
+
+    /**
+     * @return closure-compiled code of the program starting at the instruction
+     */
+    public CompiledMethod program(int entryPoint) {
+        CompiledMethod program = programs.get(entryPoint);
+        if (program == null) {
+            program = compile(entryPoint, null);
+            if (program == null) {
+                throw new RuntimeException("Program at " + entryPoint + " cannot be compiled.");
+            }
+            programs.put(entryPoint, program);
+        }
+
+        return program;
+    }
+
+    /**
+     * @param method method owning the code, null for a program
+     */
+    private CompiledMethod compile(int entryPoint, final Method method) {
+        int[] instructions = JIT.reachable(mm.instructions(), entryPoint);
+        if (instructions == null) {
+            return null;
+        }
+
+        int[] stream = mm.instructions();
+        Map<Integer, Node> nodes = new HashMap<Integer, Node>();
+        for (int i : instructions) {
+            Node node = node(stream, i, method);
+            if (node == null) {
+                return null;
+            }
+            nodes.put(i, node);
+        }
+
+        for (int i : instructions) {
+            Node node = nodes.get(i);
+            int next = i + 1 + Bytecode.instruction((byte) stream[i]).numOfArguments;
+            node.next = nodes.get(next);
+            if (node instanceof Jump) {
+                node.next = nodes.get(stream[i + 1]);
+            } else if (node instanceof Branch) {
+                ((Branch) node).target = nodes.get(stream[i + 1]);
+            }
+        }
+
+        // skipping forward jumps
+        for (Node node : nodes.values()) {
+            node.next = skipJumps(node.next);
+            if (node instanceof Branch) {
+                ((Branch) node).target = skipJumps(((Branch) node).target);
+            }
+        }
+
+        final Node entry = skipJumps(nodes.get(entryPoint));
+        return new CompiledMethod() {
+            @Override
+            public void invoke(JITRuntime runtime) {
+                Node node = entry;
+                while (node != null) {
+                    node = node.execute(runtime);
+                }
+            }
+        };
+    }
+
+    private static Node skipJumps(Node node) {
+        // jumps forming a cycle are left in place
+        for (int i = 0; i < 100 && node instanceof Jump && ((Jump) node).method == null; i++) {
+            node = node.next;
+        }
+        return node;
+    }
+
+    private Node node(int[] stream, int i, final Method method) {
+        final int arg1 = i + 1 < stream.length ? stream[i + 1] : 0;
+        final int arg2 = i + 2 < stream.length ? stream[i + 2] : 0;
+
+        switch (stream[i]) {
+            case 0x01:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.syscall(arg1);
+                    }
+                };
+            case 0x02:
+                final int slot = interpreter.quickenCall(i + 1);
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.call(slot);
+                    }
+                };
+            case 0x03:
+                return new Return() {
+                    void run(JITRuntime rt) {
+                        rt.doReturn();
+                    }
+                };
+            case 0x04:
+                return new Return() {
+                    void run(JITRuntime rt) {
+                        rt.returnTop();
+                    }
+                };
+            case 0x05:
+                final int classId = interpreter.tryQuickenNew(i + 1);
+                final int pc = i + 1;
+                if (classId >= 0) {
+                    return new Step() {
+                        void run(JITRuntime rt) {
+                            rt.newObjectQuick(classId);
+                        }
+                    };
+                }
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.newObject(pc);
+                    }
+                };
+            case 0x06:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.getField();
+                    }
+                };
+            case 0x07:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.setField();
+                    }
+                };
+            case 0x08:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.push(arg1);
+                    }
+                };
+            case 0x0A:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.pushInt(arg1);
+                    }
+                };
+            case 0x09:
+            case 0x0B:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.pop();
+                    }
+                };
+            case 0x0C:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.storeLocal(arg1);
+                    }
+                };
+            case 0x0D:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.loadLocal(arg1);
+                    }
+                };
+            case 0x0E:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.add();
+                    }
+                };
+            case 0x0F:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.sub();
+                    }
+                };
+            case 0x10:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.mul();
+                    }
+                };
+            case 0x11:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.div();
+                    }
+                };
+            case 0x12:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.mod();
+                    }
+                };
+            case 0x13:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.storeArg(arg1, arg2);
+                    }
+                };
+            case 0x14:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.loadArg(arg1);
+                    }
+                };
+            case 0x15:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.setBytes(arg1);
+                    }
+                };
+            case 0x16:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.newInt(arg1);
+                    }
+                };
+            case 0x17:
+                final int string = interpreter.quickenNewString(i + 1);
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.newStringQuick(string);
+                    }
+                };
+            case 0x18:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.newArray(arg1);
+                    }
+                };
+            case 0x19:
+                return new Jump(arg1 < i ? method : null);
+            case 0x1A:
+                return new Branch() {
+                    boolean test(JITRuntime rt) {
+                        return rt.eq();
+                    }
+                };
+            case 0x1B:
+                return new Branch() {
+                    boolean test(JITRuntime rt) {
+                        return rt.neq();
+                    }
+                };
+            case 0x1C:
+                return new Branch() {
+                    boolean test(JITRuntime rt) {
+                        return rt.gt();
+                    }
+                };
+            case 0x1D:
+                return new Branch() {
+                    boolean test(JITRuntime rt) {
+                        return rt.ge();
+                    }
+                };
+            case 0x1E:
+                return new Branch() {
+                    boolean test(JITRuntime rt) {
+                        return rt.lt();
+                    }
+                };
+            case 0x1F:
+                return new Branch() {
+                    boolean test(JITRuntime rt) {
+                        return rt.le();
+                    }
+                };
+            case 0x21:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.castStrInt();
+                    }
+                };
+            case 0x22:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.getFieldDyn();
+                    }
+                };
+            case 0x23:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.setFieldDyn();
+                    }
+                };
+            case 0x24:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.castIntStr();
+                    }
+                };
+            case 0x25:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.getSelfField(arg1);
+                    }
+                };
+            case 0x26:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.loadArgPair(arg1, arg2);
+                    }
+                };
+            case 0x27:
+                return new Return() {
+                    void run(JITRuntime rt) {
+                        rt.addReturn();
+                    }
+                };
+            case 0x28:
+                return new Return() {
+                    void run(JITRuntime rt) {
+                        rt.subReturn();
+                    }
+                };
+            case 0x29:
+                return new Return() {
+                    void run(JITRuntime rt) {
+                        rt.mulReturn();
+                    }
+                };
+            case 0x2A:
+                return new Return() {
+                    void run(JITRuntime rt) {
+                        rt.divReturn();
+                    }
+                };
+            case 0x2B:
+                return new Return() {
+                    void run(JITRuntime rt) {
+                        rt.modReturn();
+                    }
+                };
+            case 0x2C:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.newObjectQuick(arg1);
+                    }
+                };
+            case 0x2D:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.call(arg1);
+                    }
+                };
+            case 0x2E:
+                return new Step() {
+                    void run(JITRuntime rt) {
+                        rt.newStringQuick(arg1);
+                    }
+                };
+            default:
+                return null;
+        }
+    }
+
+    private static abstract class Node {
+
+        Node next;
+
+        /**
+         * @return node to execute next, null after returning from the code
+         */
+        abstract Node execute(JITRuntime rt);
+
+    }
+
+    private static abstract class Step extends Node {
+
+        Node execute(JITRuntime rt) {
+            run(rt);
+            return next;
+        }
+
+        abstract void run(JITRuntime rt);
+
+    }
+
+    private static abstract class Return extends Node {
+
+        Node execute(JITRuntime rt) {
+            run(rt);
+            return null;
+        }
+
+        abstract void run(JITRuntime rt);
+
+    }
+
+    private static abstract class Branch extends Node {
+
+        Node target;
+
+        Node execute(JITRuntime rt) {
+            return test(rt) ? target : next;
+        }
+
+        abstract boolean test(JITRuntime rt);
+
+    }
+
+    private static class Jump extends Node {
+
+        // method whose backedges are counted, null if the jump is skipped
+        private Method method;
+
+        Jump(Method method) {
+            this.method = method;
+        }
+
+        Node execute(JITRuntime rt) {
+            if (method != null) {
+                method.countBackedge();
+            }
+            return next;
+        }
+
+    }
+
+}
@@ -0,0 +1,11 @@
+package vm.jit;
+
+/**
+ * Method compiled to a JVM class by the JIT. It is invoked with its frame already created by ClausVM.callMethod and
+ * discards the frame itself when it returns.
+ */
+public interface CompiledMethod {
+
+    void invoke(JITRuntime runtime);
+
+}
@@ -0,0 +1,371 @@
+package vm.jit;
+
+import vm.Bytecode;
+import vm.BytecodeInterpreter;
+import vm.ClausVM;
+import vm.mm.MM;
+import vm.mm.Method;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiles hot methods to JVM classes. Every instruction becomes either a JVM branch or a call of the JITRuntime
+ * operation implementing it, so the instruction dispatch disappears and HotSpot compiles the control flow of the method
+ * together with the inlined operations.
+ * <p/>
+ * A method is hot when it was called INVOCATION_THRESHOLD times or its backward jmp instructions were taken
+ * BACKEDGE_THRESHOLD times. It is compiled on its next call, running activations stay in the interpreter.
+ */
+public class JIT {
+
+    public static final int INVOCATION_THRESHOLD = 1000;
+
+    public static final int BACKEDGE_THRESHOLD = 10000;
+
+    // branch offsets of the JVM are signed 16 bit numbers
+    private static final int MAX_CODE_SIZE = Short.MAX_VALUE;
+
+    private static final String RUNTIME = "vm/jit/JITRuntime";
+
+    private MM mm;
+
+    private BytecodeInterpreter interpreter;
+
+    private JITRuntime runtime;
+
+    // method owning each instruction, used to attribute backward jumps to methods
+    private Method[] owners;
+
+    private boolean enabled = true;
+
+    private int invocationThreshold = INVOCATION_THRESHOLD;
+
+    private int backedgeThreshold = BACKEDGE_THRESHOLD;
+
+    public JIT(ClausVM vm, MM mm, BytecodeInterpreter interpreter) {
+        this.mm = mm;
+        this.interpreter = interpreter;
+        this.runtime = new JITRuntime(vm, mm, interpreter);
+        this.owners = new Method[mm.instructions().length];
+    }
+
+    public JITRuntime runtime() {
+        return runtime;
+    }
+
+    public void enabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void thresholds(int invocations, int backedges) {
+        this.invocationThreshold = invocations;
+        this.backedgeThreshold = backedges;
+    }
+
+    /**
+     * Records the instructions of a new method so that backward jumps in them are counted.
+     */
+    public void register(Method method) {
+        int[] instructions = reachable(mm.instructions(), method.entryPoint());
+        if (instructions == null) {
+            method.compilable(false);
+            return;
+        }
+
+        for (int i : instructions) {
+            if (owners[i] == null) {
+                owners[i] = method;
+            }
+        }
+    }
+
+    /**
+     * @param pc instruction index of the jump
+     */
+    public void countBackedge(int pc) {
+        Method method = owners[pc];
+        if (method != null) {
+            method.countBackedge();
+        }
+    }
+
+    /**
+     * @return compiled version of the method, compiling it if it got hot, or null if it should be interpreted
+     */
+    public CompiledMethod compiled(Method method) {
+        CompiledMethod compiled = method.compiled();
+        if (compiled != null || !enabled || !method.compilable()) {
+            return compiled;
+        }
+
+        if (method.invocations() >= invocationThreshold || method.backedges() >= backedgeThreshold) {
+            compiled = compile(method);
+            if (compiled == null) {
+                method.compilable(false);
+            }
+            method.compiled(compiled);
+        }
+
+        return compiled;
+    }
+
+    /**
+     * @return compiled method or null if the method cannot be compiled
+     */
+    public CompiledMethod compile(Method method) {
+        int[] instructions = reachable(mm.instructions(), method.entryPoint());
+        if (instructions == null) {
+            return null;
+        }
+
+        ClassFile cf = new ClassFile("vm/jit/Compiled", "java/lang/Object", "vm/jit/CompiledMethod");
+
+        ClassFile.Code constructor = new ClassFile.Code(1, 1);
+        constructor.op(ClassFile.ALOAD_0);
+        constructor.op(ClassFile.INVOKESPECIAL, cf.methodConstant("java/lang/Object", "<init>", "()V"));
+        constructor.op(ClassFile.RETURN);
+        cf.addMethod(ClassFile.ACC_PUBLIC, "<init>", "()V", constructor);
+
+        ClassFile.Code code = new ClassFile.Code(3, 2);
+        int[] stream = mm.instructions();
+        for (int i : instructions) {
+            code.label(i);
+            int arg1 = i + 1 < stream.length ? stream[i + 1] : 0;
+            int arg2 = i + 2 < stream.length ? stream[i + 2] : 0;
+
+            switch (stream[i]) {
+                case 0x01:
+                    call(cf, code, "syscall", arg1);
+                    break;
+                case 0x02:
+                    // inline cache of the call site is shared with the interpreter
+                    call(cf, code, "call", interpreter.quickenCall(i + 1));
+                    break;
+                case 0x03:
+                    call(cf, code, "doReturn");
+                    code.op(ClassFile.RETURN);
+                    break;
+                case 0x04:
+                    call(cf, code, "returnTop");
+                    code.op(ClassFile.RETURN);
+                    break;
+                case 0x05:
+                    int classId = interpreter.tryQuickenNew(i + 1);
+                    if (classId >= 0) {
+                        call(cf, code, "newObjectQuick", classId);
+                    } else {
+                        call(cf, code, "newObject", i + 1);
+                    }
+                    break;
+                case 0x06:
+                    call(cf, code, "getField");
+                    break;
+                case 0x07:
+                    call(cf, code, "setField");
+                    break;
+                case 0x08:
+                    call(cf, code, "push", arg1);
+                    break;
+                case 0x0A:
+                    call(cf, code, "pushInt", arg1);
+                    break;
+                case 0x09:
+                case 0x0B:
+                    call(cf, code, "pop");
+                    break;
+                case 0x0C:
+                    call(cf, code, "storeLocal", arg1);
+                    break;
+                case 0x0D:
+                    call(cf, code, "loadLocal", arg1);
+                    break;
+                case 0x0E:
+                    call(cf, code, "add");
+                    break;
+                case 0x0F:
+                    call(cf, code, "sub");
+                    break;
+                case 0x10:
+                    call(cf, code, "mul");
+                    break;
+                case 0x11:
+                    call(cf, code, "div");
+                    break;
+                case 0x12:
+                    call(cf, code, "mod");
+                    break;
+                case 0x13:
+                    call(cf, code, "storeArg", arg1, arg2);
+                    break;
+                case 0x14:
+                    call(cf, code, "loadArg", arg1);
+                    break;
+                case 0x15:
+                    call(cf, code, "setBytes", arg1);
+                    break;
+                case 0x16:
+                    call(cf, code, "newInt", arg1);
+                    break;
+                case 0x17:
+                    call(cf, code, "newStringQuick", interpreter.quickenNewString(i + 1));
+                    break;
+                case 0x18:
+                    call(cf, code, "newArray", arg1);
+                    break;
+                case 0x19:
+                    code.branch(ClassFile.GOTO, arg1);
+                    break;
+                case 0x1A:
+                    test(cf, code, "eq", arg1);
+                    break;
+                case 0x1B:
+                    test(cf, code, "neq", arg1);
+                    break;
+                case 0x1C:
+                    test(cf, code, "gt", arg1);
+                    break;
+                case 0x1D:
+                    test(cf, code, "ge", arg1);
+                    break;
+                case 0x1E:
+                    test(cf, code, "lt", arg1);
+                    break;
+                case 0x1F:
+                    test(cf, code, "le", arg1);
+                    break;
+                case 0x21:
+                    call(cf, code, "castStrInt");
+                    break;
+                case 0x22:
+                    call(cf, code, "getFieldDyn");
+                    break;
+                case 0x23:
+                    call(cf, code, "setFieldDyn");
+                    break;
+                case 0x24:
+                    call(cf, code, "castIntStr");
+                    break;
+                case 0x25:
+                    call(cf, code, "getSelfField", arg1);
+                    break;
+                case 0x26:
+                    call(cf, code, "loadArgPair", arg1, arg2);
+                    break;
+                case 0x27:
+                    call(cf, code, "addReturn");
+                    code.op(ClassFile.RETURN);
+                    break;
+                case 0x28:
+                    call(cf, code, "subReturn");
+                    code.op(ClassFile.RETURN);
+                    break;
+                case 0x29:
+                    call(cf, code, "mulReturn");
+                    code.op(ClassFile.RETURN);
+                    break;
+                case 0x2A:
+                    call(cf, code, "divReturn");
+                    code.op(ClassFile.RETURN);
+                    break;
+                case 0x2B:
+                    call(cf, code, "modReturn");
+                    code.op(ClassFile.RETURN);
+                    break;
+                case 0x2C:
+                    call(cf, code, "newObjectQuick", arg1);
+                    break;
+                case 0x2D:
+                    call(cf, code, "call", arg1);
+                    break;
+                case 0x2E:
+                    call(cf, code, "newStringQuick", arg1);
+                    break;
+                default:
+                    return null;
+            }
+        }
+
+        if (code.size() > MAX_CODE_SIZE) {
+            return null;
+        }
+        cf.addMethod(ClassFile.ACC_PUBLIC, "invoke", "(Lvm/jit/JITRuntime;)V", code);
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(cf.bytes(), true);
+            return (CompiledMethod) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            throw new RuntimeException("Compilation of method '" + method.selector() + "' failed.", e);
+        }
+    }
+
+    /**
+     * @return sorted indexes of instructions reachable from the entry point or null if the code leaves the decoded
+     * instruction stream
+     */
+    static int[] reachable(int[] stream, int entryPoint) {
+        boolean[] visited = new boolean[stream.length];
+        List<Integer> found = new ArrayList<Integer>();
+        List<Integer> work = new ArrayList<Integer>();
+        work.add(entryPoint);
+
+        while (!work.isEmpty()) {
+            int i = work.remove(work.size() - 1);
+            if (i < 0 || i >= stream.length) {
+                return null;
+            }
+            if (visited[i]) {
+                continue;
+            }
+
+            Bytecode.BytecodeInstruction instruction = Bytecode.instruction((byte) stream[i]);
+            if (stream[i] != (stream[i] & 0xFF) || instruction == null) {
+                return null;
+            }
+            visited[i] = true;
+            found.add(i);
+
+            int next = i + 1 + instruction.numOfArguments;
+            if (instruction.jump) {
+                work.add(stream[i + 1]);
+                if (stream[i] != 0x19) {
+                    work.add(next);
+                }
+            } else if (!isReturn(stream[i])) {
+                work.add(next);
+            }
+        }
+
+        int[] instructions = new int[found.size()];
+        for (int i = 0; i < instructions.length; i++) {
+            instructions[i] = found.get(i);
+        }
+        Arrays.sort(instructions);
+        return instructions;
+    }
+
+    private static boolean isReturn(int instruction) {
+        return instruction == 0x03 || instruction == 0x04 || (instruction >= 0x27 && instruction <= 0x2B);
+    }
+
+    private static void call(ClassFile cf, ClassFile.Code code, String operation, int... args) {
+        code.op(ClassFile.ALOAD_1);
+        StringBuilder descriptor = new StringBuilder("(");
+        for (int arg : args) {
+            code.pushInt(cf, arg);
+            descriptor.append('I');
+        }
+        descriptor.append(")V");
+        code.op(ClassFile.INVOKEVIRTUAL, cf.methodConstant(RUNTIME, operation, descriptor.toString()));
+    }
+
+    private static void test(ClassFile cf, ClassFile.Code code, String operation, int target) {
+        code.op(ClassFile.ALOAD_1);
+        code.op(ClassFile.INVOKEVIRTUAL, cf.methodConstant(RUNTIME, operation, "()Z"));
+        code.branch(ClassFile.IFNE, target);
+    }
+
+}
@@ -0,0 +1,259 @@
+package vm.jit;
+
+import vm.BytecodeInterpreter;
+import vm.ClausVM;
+import vm.InlineCache;
+import vm.mm.MM;
+import vm.mm.Pointer;
+
+import static vm.Util.*;
+
+/**
+ * Operations called by compiled and closure-compiled code, one for every instruction that is not compiled to a branch.
+ * They work on the MM stack exactly like BytecodeInterpreter, so the GC sees every value held by compiled code.
+ */
+public class JITRuntime {
+
+    private ClausVM vm;
+
+    private MM mm;
+
+    private BytecodeInterpreter interpreter;
+
+    public JITRuntime(ClausVM vm, MM mm, BytecodeInterpreter interpreter) {
+        this.vm = vm;
+        this.mm = mm;
+        this.interpreter = interpreter;
+    }
+
+    public void syscall(int syscall) {
+        vm.syscall(syscall).call();
+    }
+
+    /**
+     * Sends the message, interpreting the callee until it returns if it is not compiled.
+     *
+     * @param slot inline cache of the quickened call
+     */
+    public void call(int slot) {
+        InlineCache cache = interpreter.inlineCache(slot);
+        Pointer receiver = mm.popPointer();
+        mm.setPC(MM.RETURN_TO_COMPILED);
+        vm.callMethod(receiver, cache.selector(), cache);
+        if (mm.getPC() != MM.RETURN_TO_COMPILED) {
+            interpreter.interpret();
+        }
+    }
+
+    public void doReturn() {
+        if (mm.discardFrame() != MM.END_OF_PROGRAM) {
+            mm.popWord();
+        }
+    }
+
+    public void returnTop() {
+        int returnValue = mm.popWord();
+        if (mm.discardFrame() != MM.END_OF_PROGRAM) {
+            // replacing the receiver
+            mm.topWord(returnValue);
+        }
+    }
+
+    /**
+     * New of a class not defined when the code was compiled, the instruction is quickened on the first execution and
+     * the class is looked up by its ID from then on.
+     *
+     * @param pc instruction index of the new operand
+     */
+    public void newObject(int pc) {
+        newObjectQuick(interpreter.quickenNew(pc));
+    }
+
+    public void newObjectQuick(int classId) {
+        Pointer clazz = vm.getClazz(classId);
+        mm.pushPointer(vm.newObject(clazz, clazz.$c().objectSize()));
+    }
+
+    public void getField() {
+        int index = mm.popWord();
+        Pointer obj = new Pointer(mm.topWord(), mm);
+        mm.topWord(obj.$p().field(index).address);
+    }
+
+    public void setField() {
+        Pointer value = mm.popPointer();
+        int index = mm.popWord();
+        Pointer obj = mm.popPointer();
+        obj.$p().field(index, value);
+    }
+
+    public void push(int word) {
+        mm.pushWord(word);
+    }
+
+    public void pushInt(int number) {
+        mm.pushInt(number);
+    }
+
+    public void pop() {
+        mm.popWord();
+    }
+
+    public void storeLocal(int index) {
+        mm.storeLocal(index);
+    }
+
+    public void loadLocal(int index) {
+        mm.loadLocal(index);
+    }
+
+    public void add() {
+        int operand2 = vm.intValue(mm.popWord());
+        int operand1 = vm.intValue(mm.topWord());
+        mm.topWord(vm.newIntegerWord(operand1 + operand2));
+    }
+
+    public void sub() {
+        int operand2 = vm.intValue(mm.popWord());
+        int operand1 = vm.intValue(mm.topWord());
+        mm.topWord(vm.newIntegerWord(operand1 - operand2));
+    }
+
+    public void mul() {
+        int operand2 = vm.intValue(mm.popWord());
+        int operand1 = vm.intValue(mm.topWord());
+        mm.topWord(vm.newIntegerWord(operand1 * operand2));
+    }
+
+    public void div() {
+        int operand2 = vm.intValue(mm.popWord());
+        int operand1 = vm.intValue(mm.topWord());
+        mm.topWord(vm.newIntegerWord(operand1 / operand2));
+    }
+
+    public void mod() {
+        int operand2 = vm.intValue(mm.popWord());
+        int operand1 = vm.intValue(mm.topWord());
+        mm.topWord(vm.newIntegerWord(operand1 % operand2));
+    }
+
+    public void storeArg(int index, int word) {
+        mm.arg(index, new Pointer(word, mm));
+    }
+
+    public void loadArg(int index) {
+        mm.loadArg(index);
+    }
+
+    public void setBytes(int number) {
+        Pointer obj = mm.popPointer();
+        obj.$b().bytes(int2bytes(number));
+    }
+
+    public void newInt(int value) {
+        mm.pushWord(vm.newIntegerWord(value));
+    }
+
+    public void newStringQuick(int slot) {
+        mm.pushPointer(vm.newString(interpreter.string(slot)));
+    }
+
+    public void newArray(int sizeIndex) {
+        mm.pushPointer(vm.newArray((Integer) mm.constant(sizeIndex)));
+    }
+
+    public boolean eq() {
+        int i1 = vm.intValue(mm.popWord());
+        int i2 = vm.intValue(mm.popWord());
+        return i1 == i2;
+    }
+
+    public boolean neq() {
+        int i1 = vm.intValue(mm.popWord());
+        int i2 = vm.intValue(mm.popWord());
+        return i1 != i2;
+    }
+
+    public boolean gt() {
+        int i2 = vm.intValue(mm.popWord());
+        int i1 = vm.intValue(mm.popWord());
+        return i1 > i2;
+    }
+
+    public boolean ge() {
+        int i2 = vm.intValue(mm.popWord());
+        int i1 = vm.intValue(mm.popWord());
+        return i1 >= i2;
+    }
+
+    public boolean lt() {
+        int i2 = vm.intValue(mm.popWord());
+        int i1 = vm.intValue(mm.popWord());
+        return i1 < i2;
+    }
+
+    public boolean le() {
+        int i2 = vm.intValue(mm.popWord());
+        int i1 = vm.intValue(mm.popWord());
+        return i1 <= i2;
+    }
+
+    public void castStrInt() {
+        Pointer intAsString = mm.popPointer();
+        mm.pushWord(vm.newIntegerWord(Integer.valueOf(bytes2str(intAsString.$b().bytes()))));
+    }
+
+    public void getFieldDyn() {
+        int index = vm.intValue(mm.popWord());
+        Pointer obj = new Pointer(mm.topWord(), mm);
+        mm.topWord(obj.$p().field(index).address);
+    }
+
+    public void setFieldDyn() {
+        Pointer value = mm.popPointer();
+        int index = vm.intValue(mm.popWord());
+        Pointer obj = mm.popPointer();
+        obj.$p().field(index, value);
+    }
+
+    public void castIntStr() {
+        byte[] converted = str2bytes(String.valueOf(vm.intValue(mm.popWord())));
+        mm.pushPointer(vm.newString(converted));
+    }
+
+    public void getSelfField(int index) {
+        Pointer obj = new Pointer(mm.argWord(0), mm);
+        mm.pushWord(obj.$p().field(index).address);
+    }
+
+    public void loadArgPair(int first, int second) {
+        mm.loadArg(first);
+        mm.loadArg(second);
+    }
+
+    public void addReturn() {
+        add();
+        returnTop();
+    }
+
+    public void subReturn() {
+        sub();
+        returnTop();
+    }
+
+    public void mulReturn() {
+        mul();
+        returnTop();
+    }
+
+    public void divReturn() {
+        div();
+        returnTop();
+    }
+
+    public void modReturn() {
+        mod();
+        returnTop();
+    }
+
+}
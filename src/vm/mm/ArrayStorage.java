@@ -0,0 +1,89 @@
+package vm.mm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Heap in a Java byte array, so of at most 2 GB. Ints are read by a single aligned access of a byte array view.
+ */
+public class ArrayStorage implements HeapStorage {
+
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private byte[] bytes;
+
+    public ArrayStorage(int size) {
+        bytes = new byte[size];
+    }
+
+    @Override
+    public long size() {
+        return bytes.length;
+    }
+
+    @Override
+    public byte get(long address) {
+        return bytes[(int) address];
+    }
+
+    @Override
+    public void put(long address, byte value) {
+        bytes[(int) address] = value;
+    }
+
+    @Override
+    public int getInt(long address) {
+        return (int) INTS.get(bytes, (int) address);
+    }
+
+    @Override
+    public void putInt(long address, int value) {
+        INTS.set(bytes, (int) address, value);
+    }
+
+    @Override
+    public int getIntVolatile(long address) {
+        return (int) INTS.getVolatile(bytes, (int) address);
+    }
+
+    @Override
+    public void putIntVolatile(long address, int value) {
+        INTS.setVolatile(bytes, (int) address, value);
+    }
+
+    @Override
+    public boolean compareAndSetInt(long address, int expected, int value) {
+        return INTS.compareAndSet(bytes, (int) address, expected, value);
+    }
+
+    @Override
+    public void get(long address, byte[] into, int length) {
+        System.arraycopy(bytes, (int) address, into, 0, length);
+    }
+
+    @Override
+    public void put(long address, byte[] from, int length) {
+        System.arraycopy(from, 0, bytes, (int) address, length);
+    }
+
+    @Override
+    public void copy(long from, long to, long length) {
+        System.arraycopy(bytes, (int) from, bytes, (int) to, (int) length);
+    }
+
+    @Override
+    public void fill(long address, long length, byte value) {
+        Arrays.fill(bytes, (int) address, (int) (address + length), value);
+    }
+
+    @Override
+    public void resize(long size) {
+        if (size > Integer.MAX_VALUE) {
+            throw new RuntimeException("Heap too big for a byte array!");
+        }
+        bytes = Arrays.copyOf(bytes, (int) size);
+    }
+
+}
@@ -0,0 +1,93 @@
+package vm.mm;
+
+/**
+ * Daemon thread clearing a part of the heap while the mutator runs. A collector hands over a range nothing is allocated
+ * in until the next collection, such as the from-space after a flip, and waits for it before the range is used again
+ * or the heap is resized. The thread ends by shutdown.
+ */
+class BackgroundClearer extends Thread {
+
+    private MM mm;
+
+    // range being cleared, empty when the thread is idle
+    private int start;
+    private int length = 0;
+    private boolean stopped = false;
+
+    BackgroundClearer(MM mm) {
+        super("Heap clearer");
+        this.mm = mm;
+        setDaemon(true);
+    }
+
+    /**
+     * Starts clearing the range, a previous range is finished first.
+     */
+    synchronized void clear(int start, int length) {
+        await();
+
+        this.start = start;
+        this.length = length;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the range is cleared.
+     */
+    synchronized void await() {
+        try {
+            while (length > 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Finishes the range being cleared and waits for the thread to end.
+     */
+    void shutdown() {
+        synchronized (this) {
+            await();
+            stopped = true;
+            notifyAll();
+        }
+
+        try {
+            join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            int from;
+            int size;
+            synchronized (this) {
+                try {
+                    while (length == 0 && !stopped) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                if (stopped) {
+                    return;
+                }
+                from = start;
+                size = length;
+            }
+
+            mm.clearHeap(from, size);
+
+            synchronized (this) {
+                length = 0;
+                notifyAll();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,327 @@
+package vm.mm;
+
+/**
+ * Semispace copying collector. Objects are allocated in one half of the heap, a collection copies the live ones to the
+ * other half and the halves are flipped.
+ * <p/>
+ * Copying is done by Cheney's algorithm - roots are copied first and the copied objects are then scanned in to-space
+ * like a queue. A copied object keeps its forward pointer in place of its class pointer, roots are updated in place
+ * by MM. The collector works on addresses only and allocates no Java memory, the mark stack of large objects is sized
+ * for the most objects the large object space can hold. The pause depends on live bytes and on clearing the allocated
+ * part of from-space.
+ * <p/>
+ * With heap sizing the semispaces are resized after a collection. The heap is resized only when the survivors are at
+ * its start, in the first semispace, so they are moved there by one more collection if needed.
+ * <p/>
+ * Objects of at least the large object threshold can be allocated in a large object space at the start of the heap,
+ * right after the metaspace.
+ * They are marked instead of copied and swept after the copying, so big arrays and strings are never moved. When the
+ * large object space is full, large objects are allocated in the semispaces.
+ * <p/>
+ * From-space can be cleared by a background thread after the flip, the next collection waits for it before copying.
+ */
+public class BakerGC implements GCPolicy, GCPolicy.RootVisitor {
+
+    private MM mm;
+
+    // first byte after the metaspace
+    private int heapStart;
+
+    // null for a heap of fixed size
+    private HeapSizing sizing;
+
+    boolean firstSpace;
+    private int[] space1;
+    private int[] space2;
+    private int firstFreeHeapByte;
+    // end of the current semispace
+    private int allocLimit;
+
+    // null without a large object space
+    private LargeObjectSpace largeObjects;
+    private int largeObjectSpaceSize = 0;
+    private int largeObjectThreshold = Integer.MAX_VALUE;
+
+    // marked large objects whose fields were not forwarded yet, every large object is pushed at most once
+    private int[] markStack = new int[0];
+    private int markStackPointer = 0;
+
+    // null if from-space is cleared by the collection itself
+    private BackgroundClearer clearer;
+    private boolean clearInBackground = false;
+
+    // from-space of a running collection
+    private int fromStart;
+    private int fromEnd;
+
+    // event of a running collection
+    private GCEvent event;
+
+    public BakerGC() {
+    }
+
+    public BakerGC(HeapSizing sizing) {
+        this.sizing = sizing;
+    }
+
+    /**
+     * Must be called before the MM is created.
+     *
+     * @param size      bytes of the heap used as the large object space
+     * @param threshold size of the smallest object allocated there
+     */
+    public void largeObjects(int size, int threshold) {
+        largeObjectSpaceSize = size / MM.WORD_SIZE * MM.WORD_SIZE;
+        largeObjectThreshold = threshold;
+    }
+
+    /**
+     * Must be called before the MM is created.
+     */
+    public void clearInBackground() {
+        clearInBackground = true;
+    }
+
+    @Override
+    public void init(MM mm, int start, int heapSize) {
+        this.mm = mm;
+        this.heapStart = start;
+
+        if (clearInBackground) {
+            clearer = new BackgroundClearer(mm);
+            clearer.start();
+        }
+
+        if (largeObjectSpaceSize > 0) {
+            int maxObjects = largeObjectSpaceSize / Math.max(largeObjectThreshold, MM.HEADER_SIZE);
+            largeObjects = new LargeObjectSpace(mm, heapStart, heapStart + largeObjectSpaceSize, maxObjects);
+            markStack = new int[maxObjects];
+        }
+
+        layout(heapSize);
+        firstSpace = true;
+        firstFreeHeapByte = space1[0];
+        allocLimit = space1[1];
+    }
+
+    private void layout(int heapSize) {
+        int half = (heapSize - largeObjectSpaceSize) / 2 / MM.WORD_SIZE * MM.WORD_SIZE;
+        int start = heapStart + largeObjectSpaceSize;
+        space1 = new int[]{start, start + half};
+        space2 = new int[]{start + half, start + 2 * half};
+    }
+
+    @Override
+    public int alloc(int size) {
+        int address = firstFreeHeapByte;
+        if (address + size <= allocLimit && size < largeObjectThreshold) {
+            firstFreeHeapByte = address + size;
+            return address;
+        }
+
+        return allocSlow(size);
+    }
+
+    /**
+     * Allocates a large object or collects garbage first.
+     */
+    private int allocSlow(int size) {
+        if (largeObjects != null && size >= largeObjectThreshold) {
+            int address = largeObjects.alloc(size);
+            if (address < 0) {
+                collectGarbage(size);
+                address = largeObjects.alloc(size);
+            }
+            if (address >= 0) {
+                return address;
+            }
+        }
+
+        if (firstFreeHeapByte + size > allocLimit) {
+            collectGarbage(size);
+
+            if (firstFreeHeapByte + size > allocLimit) {
+                throw new RuntimeException("Not enough memory!");
+            }
+        }
+
+        int address = firstFreeHeapByte;
+        firstFreeHeapByte += size;
+        return address;
+    }
+
+    /**
+     * @param request size of the allocation which needs the collection
+     */
+    private void collectGarbage(int request) {
+        if (sizing != null) {
+            sizing.collectionStarted();
+            collect();
+            // the pause is recorded first, resizing decides by it
+            sizing.collectionFinished();
+            resize(request);
+        } else {
+            collect();
+        }
+    }
+
+    /**
+     * @return bytes of objects in the current semispace and the large object space
+     */
+    private int used() {
+        int used = firstFreeHeapByte - (firstSpace ? space1[0] : space2[0]);
+        return largeObjects == null ? used : used + largeObjectSpaceSize - largeObjects.free();
+    }
+
+    private void resize(int request) {
+        int live = firstFreeHeapByte - (firstSpace ? space1[0] : space2[0]);
+        int heapSize = space2[1] - space1[0];
+        // survivors are never cut off
+        int newHeapSize = Math.max(sizing.heapSize(heapSize, 2 * (live + request)), 2 * live)
+                / (2 * MM.WORD_SIZE) * (2 * MM.WORD_SIZE);
+        if (newHeapSize == heapSize) {
+            return;
+        }
+
+        if (!firstSpace) {
+            collect();
+        }
+
+        if (clearer != null) {
+            clearer.await();
+        }
+        mm.resizeHeap(largeObjectSpaceSize + newHeapSize);
+        layout(largeObjectSpaceSize + newHeapSize);
+        allocLimit = space1[1];
+    }
+
+    @Override
+    public void writeBarrier(int obj, int value) {
+        // all objects are copied by every collection
+    }
+
+    @Override
+    public int readBarrier(int word) {
+        return word;
+    }
+
+    /**
+     * Copies live objects to the other semispace and flips the semispaces.
+     */
+    @Override
+    public void collect() {
+        int[] from = firstSpace ? space1 : space2;
+        int[] to = firstSpace ? space2 : space1;
+
+        if (clearer != null) {
+            // to-space is the from-space of the previous collection
+            clearer.await();
+        }
+        event = mm.collectionStarted("Baker", used());
+
+        fromStart = from[0];
+        fromEnd = firstFreeHeapByte;
+        firstFreeHeapByte = to[0];
+
+        event.roots = mm.visitRoots(this);
+
+        int scan = to[0];
+        while (scan < firstFreeHeapByte || markStackPointer > 0) {
+            if (scan < firstFreeHeapByte) {
+                scanObject(scan);
+                scan += mm.objectSize(scan);
+            } else {
+                scanObject(markStack[--markStackPointer]);
+            }
+        }
+
+        if (largeObjects != null) {
+            largeObjects.sweep();
+        }
+
+        // only the allocated part of from-space holds objects, the rest was cleared by the previous collection
+        if (clearer != null) {
+            clearer.clear(fromStart, fromEnd - fromStart);
+        } else {
+            mm.clearHeap(fromStart, fromEnd - fromStart);
+        }
+        firstSpace = !firstSpace;
+        allocLimit = to[1];
+        fromStart = fromEnd = 0;
+
+        mm.collected(used());
+        event = null;
+    }
+
+    @Override
+    public void visitHeap(HeapVisitor visitor) {
+        if (largeObjects != null) {
+            visitor.range(heapStart, heapStart + largeObjectSpaceSize);
+        }
+        visitor.range(firstSpace ? space1[0] : space2[0], firstFreeHeapByte);
+    }
+
+    /**
+     * Stops the background clearer, from-space is cleared by the collections afterwards.
+     */
+    @Override
+    public void shutdown() {
+        if (clearer != null) {
+            clearer.shutdown();
+            clearer = null;
+        }
+    }
+
+    @Override
+    public int root(int word) {
+        return forward(word);
+    }
+
+    private void scanObject(int obj) {
+        mm.heapInt(obj + MM.Obj.CLASS_OFFSET, forward(mm.heapInt(obj + MM.Obj.CLASS_OFFSET)));
+        if (mm.isPointerIndexed(obj)) {
+            int size = mm.length(obj);
+            for (int i = 0; i < size; i++) {
+                int address = obj + MM.Obj.DATA_OFFSET + (i * MM.REF_SIZE);
+                mm.heapInt(address, forward(mm.heapInt(address)));
+            }
+        }
+    }
+
+    /**
+     * @return new address of the object, the word itself if it is not an object in from-space
+     */
+    private int forward(int word) {
+        if (largeObjects != null && largeObjects.contains(word)) {
+            // large objects stay where they are
+            if (mm.heapByte(word) == MM.MARKER && largeObjects.mark(word)) {
+                markStack[markStackPointer++] = word;
+                event.survivors++;
+            }
+            return word;
+        }
+
+        // NULL, tagged small integers and method indexes are negative, classes are in the metaspace
+        if (word < fromStart || word >= fromEnd || mm.heapByte(word) != MM.MARKER) {
+            return word;
+        }
+
+        if (mm.heapByte(word + MM.Obj.GC_STATE_OFFSET) == GCState.COPIED.value) {
+            // forward pointer is stored in place of the class pointer
+            return mm.heapInt(word + MM.Obj.CLASS_OFFSET);
+        }
+
+        int to = firstFreeHeapByte;
+        int size = mm.objectSize(word);
+        mm.copyHeap(word, to, size);
+        firstFreeHeapByte += size;
+        event.survivors++;
+        event.bytesCopied += size;
+
+        mm.heapByte(word + MM.Obj.GC_STATE_OFFSET, GCState.COPIED.value);
+        mm.heapInt(word + MM.Obj.CLASS_OFFSET, to);
+
+        return to;
+    }
+
+}
@@ -0,0 +1,190 @@
+package vm.mm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Heap in direct byte buffers, outside of the Java heap. A big heap neither counts against the Java heap limit nor is
+ * scanned or moved by the Java garbage collector, direct memory is limited by -XX:MaxDirectMemorySize instead.
+ * <p/>
+ * A buffer holds at most 2 GB, so the heap is split into chunks of 1 GB addressed by longs. Ints are read by a single
+ * aligned access of a byte buffer view, a chunk is a whole number of ints so that no int crosses two chunks.
+ */
+public class DirectStorage implements HeapStorage {
+
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final int chunkBits;
+    private final long chunkSize;
+    private final long chunkMask;
+
+    private ByteBuffer[] chunks;
+    private long size;
+
+    public DirectStorage(long size) {
+        this(size, 30);
+    }
+
+    /**
+     * @param chunkBits chunks of 2^chunkBits bytes, at least an int and at most 1 GB
+     */
+    DirectStorage(long size, int chunkBits) {
+        if (chunkBits < 2 || chunkBits > 30) {
+            throw new RuntimeException("Wrong chunk size!");
+        }
+        this.chunkBits = chunkBits;
+        chunkSize = 1L << chunkBits;
+        chunkMask = chunkSize - 1;
+
+        this.size = size;
+        chunks = new ByteBuffer[chunkCount(size)];
+        for (int i = 0; i < chunks.length; i++) {
+            // big-endian by default
+            chunks[i] = ByteBuffer.allocateDirect(capacity(size, i));
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public byte get(long address) {
+        return chunks[(int) (address >>> chunkBits)].get((int) (address & chunkMask));
+    }
+
+    @Override
+    public void put(long address, byte value) {
+        chunks[(int) (address >>> chunkBits)].put((int) (address & chunkMask), value);
+    }
+
+    @Override
+    public int getInt(long address) {
+        return (int) INTS.get(chunks[(int) (address >>> chunkBits)], (int) (address & chunkMask));
+    }
+
+    @Override
+    public void putInt(long address, int value) {
+        INTS.set(chunks[(int) (address >>> chunkBits)], (int) (address & chunkMask), value);
+    }
+
+    @Override
+    public int getIntVolatile(long address) {
+        return (int) INTS.getVolatile(chunks[(int) (address >>> chunkBits)], (int) (address & chunkMask));
+    }
+
+    @Override
+    public void putIntVolatile(long address, int value) {
+        INTS.setVolatile(chunks[(int) (address >>> chunkBits)], (int) (address & chunkMask), value);
+    }
+
+    @Override
+    public boolean compareAndSetInt(long address, int expected, int value) {
+        return INTS.compareAndSet(chunks[(int) (address >>> chunkBits)], (int) (address & chunkMask), expected, value);
+    }
+
+    @Override
+    public void get(long address, byte[] into, int length) {
+        int done = 0;
+        while (done < length) {
+            ByteBuffer chunk = chunks[(int) ((address + done) >>> chunkBits)];
+            int offset = (int) ((address + done) & chunkMask);
+            int n = Math.min(length - done, chunk.capacity() - offset);
+            chunk.get(offset, into, done, n);
+            done += n;
+        }
+    }
+
+    @Override
+    public void put(long address, byte[] from, int length) {
+        int done = 0;
+        while (done < length) {
+            ByteBuffer chunk = chunks[(int) ((address + done) >>> chunkBits)];
+            int offset = (int) ((address + done) & chunkMask);
+            int n = Math.min(length - done, chunk.capacity() - offset);
+            chunk.put(offset, from, done, n);
+            done += n;
+        }
+    }
+
+    @Override
+    public void copy(long from, long to, long length) {
+        if (to <= from || to >= from + length) {
+            long done = 0;
+            while (done < length) {
+                int n = (int) Math.min(length - done,
+                        Math.min(chunkSize - ((from + done) & chunkMask), chunkSize - ((to + done) & chunkMask)));
+                copyInChunks(from + done, to + done, n);
+                done += n;
+            }
+        } else {
+            // overlapping move towards the end, the last bytes go first
+            long left = length;
+            while (left > 0) {
+                int n = (int) Math.min(left,
+                        Math.min(((from + left - 1) & chunkMask) + 1, ((to + left - 1) & chunkMask) + 1));
+                left -= n;
+                copyInChunks(from + left, to + left, n);
+            }
+        }
+    }
+
+    // the bytes lie in single chunks, the ranges may overlap
+    private void copyInChunks(long from, long to, int length) {
+        chunks[(int) (to >>> chunkBits)].put((int) (to & chunkMask), chunks[(int) (from >>> chunkBits)],
+                (int) (from & chunkMask), length);
+    }
+
+    @Override
+    public void fill(long address, long length, byte value) {
+        long word = (value & 0xFFL) * 0x0101010101010101L;
+        long done = 0;
+        while (done < length) {
+            ByteBuffer chunk = chunks[(int) ((address + done) >>> chunkBits)];
+            int start = (int) ((address + done) & chunkMask);
+            int end = (int) Math.min(chunk.capacity(), start + length - done);
+
+            int i = start;
+            for (; i + 8 <= end; i += 8) {
+                chunk.putLong(i, word);
+            }
+            for (; i < end; i++) {
+                chunk.put(i, value);
+            }
+            done += end - start;
+        }
+    }
+
+    /**
+     * Chunks which keep their size are kept as they are, so growing a big heap copies at most its last chunk.
+     */
+    @Override
+    public void resize(long size) {
+        ByteBuffer[] resized = new ByteBuffer[chunkCount(size)];
+        for (int i = 0; i < resized.length; i++) {
+            int capacity = capacity(size, i);
+            if (i < chunks.length && chunks[i].capacity() == capacity) {
+                resized[i] = chunks[i];
+            } else {
+                resized[i] = ByteBuffer.allocateDirect(capacity);
+                if (i < chunks.length) {
+                    resized[i].put(0, chunks[i], 0, Math.min(capacity, chunks[i].capacity()));
+                }
+            }
+        }
+        chunks = resized;
+        this.size = size;
+    }
+
+    private int chunkCount(long size) {
+        return (int) ((size + chunkMask) >>> chunkBits);
+    }
+
+    private int capacity(long size, int chunk) {
+        return (int) Math.min(chunkSize, size - ((long) chunk << chunkBits));
+    }
+
+}
@@ -0,0 +1,98 @@
+package vm.mm;
+
+/**
+ * A finished collection, passed to GC listeners. MM reuses the same instance for every collection so that collecting
+ * allocates nothing, listeners copy the values they keep.
+ * <p/>
+ * Times are in nanoseconds of System.nanoTime. Pause is the time the mutator was stopped - the whole collection for
+ * stop-the-world collectors, the sum of the increments of a cycle for the incremental collector.
+ */
+public class GCEvent {
+
+    String collector;
+
+    long start;
+    long duration;
+    long pause;
+
+    int roots;
+    int survivors;
+    int bytesCopied;
+
+    int usedBefore;
+    int usedAfter;
+    int heapSize;
+
+    void start(String collector, long start) {
+        this.collector = collector;
+        this.start = start;
+        duration = pause = 0;
+        roots = survivors = bytesCopied = 0;
+        usedBefore = usedAfter = heapSize = 0;
+    }
+
+    /**
+     * @return name of the collection, such as "Baker" or "Minor" for the generational collector
+     */
+    public String collector() {
+        return collector;
+    }
+
+    public long start() {
+        return start;
+    }
+
+    /**
+     * @return time from the start to the end of the collection
+     */
+    public long duration() {
+        return duration;
+    }
+
+    public long pause() {
+        return pause;
+    }
+
+    /**
+     * @return GC roots visited, pointers on the stack and in handles
+     */
+    public int roots() {
+        return roots;
+    }
+
+    /**
+     * @return objects found live, in the collected part of the heap only
+     */
+    public int survivors() {
+        return survivors;
+    }
+
+    /**
+     * @return bytes of objects moved
+     */
+    public int bytesCopied() {
+        return bytesCopied;
+    }
+
+    /**
+     * @return bytes of objects in the heap before the collection, garbage included
+     */
+    public int usedBefore() {
+        return usedBefore;
+    }
+
+    public int usedAfter() {
+        return usedAfter;
+    }
+
+    public int heapSize() {
+        return heapSize;
+    }
+
+    @Override
+    public String toString() {
+        return collector + ": " + pause / 1000 + " us, " + roots + " roots, " + survivors + " survivors, "
+                + bytesCopied + " B copied, " + usedBefore + " B -> " + usedAfter + " B of " + heapSize + " B";
+    }
+
+}
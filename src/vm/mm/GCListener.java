@@ -0,0 +1,14 @@
+package vm.mm;
+
+/**
+ * Receives events of the collections of an MM, registered by MM.addGCListener. Called by the thread which triggered
+ * the collection, after the collection.
+ */
+public interface GCListener {
+
+    /**
+     * @param event valid only during the call, reused for the next collection
+     */
+    void collected(GCEvent event);
+
+}
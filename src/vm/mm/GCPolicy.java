@@ -0,0 +1,73 @@
+package vm.mm;
+
+/**
+ * Garbage collector of MM. The policy owns the layout of the heap - it decides where new objects are allocated and
+ * when and how garbage is collected. A policy instance belongs to a single MM.
+ */
+public interface GCPolicy {
+
+    /**
+     * Called once by MM before the first allocation. The bytes before start are the metaspace of MM, the policy never
+     * moves or scans its objects.
+     *
+     * @param start    address of the first byte managed by the policy
+     * @param heapSize bytes managed by the policy
+     */
+    void init(MM mm, int start, int heapSize);
+
+    /**
+     * Allocated bytes must be free, filled with MM.FREE_MARKER, so fields of new objects are NULL without being
+     * written. Policies clear memory in bulk when they collect it.
+     *
+     * @return address of the allocated bytes, garbage is collected if there is not enough free memory
+     */
+    int alloc(int size);
+
+    /**
+     * Called before a pointer is stored into an object.
+     *
+     * @param obj   address of the object written to
+     * @param value word being stored
+     */
+    void writeBarrier(int obj, int value);
+
+    /**
+     * Called when a pointer is loaded from an object.
+     *
+     * @param word word loaded
+     * @return word the mutator gets instead
+     */
+    int readBarrier(int word);
+
+    /**
+     * Collects garbage of the whole heap.
+     */
+    void collect();
+
+    /**
+     * Passes the parts of the heap holding objects, there may be free words among the objects. Right after a collection
+     * the objects are live, otherwise garbage may be among them too.
+     */
+    void visitHeap(HeapVisitor visitor);
+
+    /**
+     * Stops threads started by the policy, called by MM.shutdown. Nothing is allocated afterwards.
+     */
+    void shutdown();
+
+    /**
+     * Receives every GC root and returns its value after the collection.
+     */
+    interface RootVisitor {
+
+        int root(int word);
+
+    }
+
+    interface HeapVisitor {
+
+        void range(int start, int end);
+
+    }
+
+}
@@ -1,8 +1,14 @@
 package vm.mm;
 
+/**
+ * In the generational mode the state byte of a nursery object also holds its age - NORMAL + number of minor collections
+ * survived. Such values are not listed here and are read as NORMAL. Old objects recorded in the remembered set are
+ * REMEMBERED. Live objects of a large object space are MARKED during a collection. An object being copied by a thread of
+ * the parallel collector is BUSY until it is COPIED.
+ */
 public enum GCState {
 
-    NORMAL((byte) 0xAA), COPIED((byte) 0xBB);
+    NORMAL((byte) 0xAA), COPIED((byte) 0xBB), REMEMBERED((byte) 0xCC), MARKED((byte) 0xDD), BUSY((byte) 0xEE);
     public byte value;
 
     GCState(byte value) {
@@ -0,0 +1,94 @@
+package vm.mm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GC listener keeping histograms of pauses in nanoseconds, of all collections and by collector, together with totals
+ * of the other counts of the events.
+ */
+public class GCStatistics implements GCListener {
+
+    private PauseHistogram pauses = new PauseHistogram();
+    private Map<String, PauseHistogram> collectorPauses = new LinkedHashMap<String, PauseHistogram>();
+
+    private long roots = 0;
+    private long survivors = 0;
+    private long bytesCopied = 0;
+    private long bytesFreed = 0;
+
+    @Override
+    public void collected(GCEvent event) {
+        pauses.record(event.pause());
+
+        PauseHistogram histogram = collectorPauses.get(event.collector());
+        if (histogram == null) {
+            histogram = new PauseHistogram();
+            collectorPauses.put(event.collector(), histogram);
+        }
+        histogram.record(event.pause());
+
+        roots += event.roots();
+        survivors += event.survivors();
+        bytesCopied += event.bytesCopied();
+        bytesFreed += Math.max(0, event.usedBefore() - event.usedAfter());
+    }
+
+    public PauseHistogram pauses() {
+        return pauses;
+    }
+
+    /**
+     * @return pauses of the collector, empty if it never collected
+     */
+    public PauseHistogram pauses(String collector) {
+        PauseHistogram histogram = collectorPauses.get(collector);
+        return histogram == null ? new PauseHistogram() : histogram;
+    }
+
+    /**
+     * @return names of the collectors in the order of their first collection
+     */
+    public List<String> collectors() {
+        return new ArrayList<String>(collectorPauses.keySet());
+    }
+
+    public long collections() {
+        return pauses.count();
+    }
+
+    public long roots() {
+        return roots;
+    }
+
+    public long survivors() {
+        return survivors;
+    }
+
+    public long bytesCopied() {
+        return bytesCopied;
+    }
+
+    /**
+     * @return sum of the heap occupancy dropped by the collections, objects allocated during an incremental cycle are
+     * subtracted
+     */
+    public long bytesFreed() {
+        return bytesFreed;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append(collections()).append(" collections, ").append(bytesCopied).append(" B copied, ").append(bytesFreed)
+                .append(" B freed\n");
+        s.append("all: ").append(pauses).append(" ns");
+        for (String collector : collectorPauses.keySet()) {
+            s.append('\n').append(collector).append(": ").append(collectorPauses.get(collector)).append(" ns");
+        }
+        return s.toString();
+    }
+
+}
@@ -0,0 +1,345 @@
+package vm.mm;
+
+import java.util.Arrays;
+
+/**
+ * Generational copying collector. The nursery is at the end of the heap, split into two halves like the old generation
+ * before it. Keeping it away from address 0 means small non-negative integers on the stack, such as field indexes, are
+ * not taken for nursery objects by minor collections.
+ * <p/>
+ * A minor collection copies live nursery objects to the other half of the nursery and promotes the ones that survived
+ * promotionAge collections to the old generation. Its roots are the stack, the handles and the remembered set, old
+ * objects are neither traced nor moved, so the pause depends on the surviving nursery data only. A major collection
+ * moves the live old objects to the other old semispace as well.
+ * <p/>
+ * Age of a nursery object is stored in its GC state byte as NORMAL + number of survived collections. Old objects
+ * pointing to the nursery are REMEMBERED, the write barrier records them.
+ */
+public class GenerationalGC implements GCPolicy, GCPolicy.RootVisitor {
+
+    // number of minor collections a nursery object survives before it is promoted to the old generation
+    public static final int PROMOTION_AGE = 2;
+
+    // age is stored in the GC state byte above NORMAL, it must stay below COPIED
+    public static final int MAX_AGE = 15;
+
+    private MM mm;
+
+    private int nurserySize;
+    private int nurseryStart;
+    private int promotionAge = PROMOTION_AGE;
+
+    boolean firstNursery;
+    private int[] nursery1;
+    private int[] nursery2;
+    private int firstFreeNurseryByte;
+
+    boolean firstSpace;
+    private int[] space1;
+    private int[] space2;
+    private int firstFreeHeapByte;
+
+    // Old objects pointing to the nursery, recorded by the write barrier. Only a collection records more of them than it
+    // started with by promoting objects, so the set is grown before a collection to take every object of a nursery
+    // half and the collection allocates no Java memory.
+    private int[] rememberedSet = new int[16];
+    private int rememberedCount = 0;
+
+    // spaces of a running collection, objects in the from ranges are moved
+    private int fromNursery;
+    private int fromNurseryEnd;
+    private int fromOld;
+    private int fromOldEnd;
+    private int toNurseryTop;
+    private int toOldTop;
+    private int toOldEnd;
+    private int collectionPromotionAge;
+    private GCEvent event;
+
+    /**
+     * @param nurserySize bytes at the end of the heap used as the nursery
+     */
+    public GenerationalGC(int nurserySize) {
+        this.nurserySize = nurserySize / (2 * MM.WORD_SIZE) * (2 * MM.WORD_SIZE);
+    }
+
+    @Override
+    public void init(MM mm, int start, int heapSize) {
+        this.mm = mm;
+
+        int oldSize = (heapSize - nurserySize) / (2 * MM.WORD_SIZE) * (2 * MM.WORD_SIZE);
+        space1 = new int[]{start, start + oldSize / 2};
+        space2 = new int[]{start + oldSize / 2, start + oldSize};
+        firstSpace = true;
+        firstFreeHeapByte = space1[0];
+
+        nurseryStart = start + oldSize;
+        nursery1 = new int[]{nurseryStart, nurseryStart + nurserySize / 2};
+        nursery2 = new int[]{nurseryStart + nurserySize / 2, nurseryStart + nurserySize};
+        firstNursery = true;
+        firstFreeNurseryByte = nursery1[0];
+    }
+
+    public void promotionAge(int promotionAge) {
+        this.promotionAge = promotionAge;
+    }
+
+    /**
+     * @return true if the object is in the nursery
+     */
+    public boolean inNursery(Pointer p) {
+        return isYoung(p.address);
+    }
+
+    private boolean isYoung(int word) {
+        return word >= nurseryStart && word < nurseryStart + nurserySize;
+    }
+
+    @Override
+    public int alloc(int size) {
+        if (size <= nursery1[1] - nursery1[0]) {
+            return allocYoung(size);
+        }
+
+        // objects not fitting into the nursery are allocated directly in the old generation
+        int max = firstSpace ? space1[1] : space2[1];
+        if (firstFreeHeapByte + size > max) {
+            collect(true, promotionAge);
+
+            max = firstSpace ? space1[1] : space2[1];
+            if (firstFreeHeapByte + size > max) {
+                throw new RuntimeException("Not enough memory!");
+            }
+        }
+
+        int address = firstFreeHeapByte;
+        firstFreeHeapByte += size;
+        return address;
+    }
+
+    /**
+     * A full nursery is emptied by a minor collection, or by a major one when the old generation might not take
+     * everything the minor collection would promote.
+     */
+    private int allocYoung(int size) {
+        int max = firstNursery ? nursery1[1] : nursery2[1];
+        if (firstFreeNurseryByte + size > max) {
+            collectNursery(false);
+
+            max = firstNursery ? nursery1[1] : nursery2[1];
+            if (firstFreeNurseryByte + size > max) {
+                // survivors too young to be promoted fill the nursery
+                collectNursery(true);
+                max = firstNursery ? nursery1[1] : nursery2[1];
+            }
+
+            if (firstFreeNurseryByte + size > max) {
+                throw new RuntimeException("Not enough memory!");
+            }
+        }
+
+        int address = firstFreeNurseryByte;
+        firstFreeNurseryByte += size;
+        return address;
+    }
+
+    /**
+     * @param promoteAll true to promote all survivors regardless of their age
+     */
+    private void collectNursery(boolean promoteAll) {
+        int used = firstFreeNurseryByte - (firstNursery ? nursery1[0] : nursery2[0]);
+        int freeOld = (firstSpace ? space1[1] : space2[1]) - firstFreeHeapByte;
+        collect(freeOld < used, promoteAll ? 0 : promotionAge);
+    }
+
+    /**
+     * Major collection, survivors of the nursery old enough are promoted.
+     */
+    @Override
+    public void collect() {
+        collect(true, promotionAge);
+    }
+
+    private void collect(boolean major, int promoteAt) {
+        int promoted = (nursery1[1] - nursery1[0]) / MM.HEADER_SIZE;
+        if (rememberedCount + promoted > rememberedSet.length) {
+            rememberedSet = Arrays.copyOf(rememberedSet, rememberedCount + promoted);
+        }
+
+        event = mm.collectionStarted(major ? "Major" : "Minor", used());
+
+        int[] from = firstNursery ? nursery1 : nursery2;
+        int[] to = firstNursery ? nursery2 : nursery1;
+        int[] oldFrom = firstSpace ? space1 : space2;
+        int[] oldTo = major ? (firstSpace ? space2 : space1) : oldFrom;
+
+        fromNursery = from[0];
+        fromNurseryEnd = from[1];
+        // empty range, minor collection does not move old objects
+        fromOld = major ? oldFrom[0] : 0;
+        fromOldEnd = major ? oldFrom[1] : 0;
+        toNurseryTop = to[0];
+        toOldTop = major ? oldTo[0] : firstFreeHeapByte;
+        toOldEnd = oldTo[1];
+        collectionPromotionAge = promoteAt;
+
+        int nurseryScan = toNurseryTop;
+        // promoted objects are scanned like the nursery survivors
+        int oldScan = toOldTop;
+
+        // states are reset before any object is moved, a moved remembered object must stay COPIED
+        int remembered = rememberedCount;
+        rememberedCount = 0;
+        for (int i = 0; i < remembered; i++) {
+            int obj = rememberedSet[i];
+            mm.heapByte(obj + MM.Obj.GC_STATE_OFFSET, GCState.NORMAL.value);
+            // major collection scans the object after moving it, if it is alive
+            if (!major) {
+                scanObject(obj);
+                event.roots++;
+            }
+        }
+
+        event.roots += mm.visitRoots(this);
+
+        while (nurseryScan < toNurseryTop || oldScan < toOldTop) {
+            if (nurseryScan < toNurseryTop) {
+                nurseryScan += scanObject(nurseryScan);
+            } else {
+                oldScan += scanObject(oldScan);
+            }
+        }
+
+        mm.clearHeap(from[0], from[1] - from[0]);
+        firstNursery = !firstNursery;
+        firstFreeNurseryByte = toNurseryTop;
+
+        if (major) {
+            mm.clearHeap(oldFrom[0], oldFrom[1] - oldFrom[0]);
+            firstSpace = !firstSpace;
+        }
+        firstFreeHeapByte = toOldTop;
+
+        fromOld = fromOldEnd = 0;
+        fromNursery = fromNurseryEnd = 0;
+
+        mm.collected(used());
+        event = null;
+    }
+
+    /**
+     * @return bytes of objects in the old generation and the nursery
+     */
+    private int used() {
+        return firstFreeHeapByte - (firstSpace ? space1[0] : space2[0]) + firstFreeNurseryByte
+                - (firstNursery ? nursery1[0] : nursery2[0]);
+    }
+
+    /**
+     * After a minor collection the old generation holds its garbage too.
+     */
+    @Override
+    public void visitHeap(HeapVisitor visitor) {
+        visitor.range(firstSpace ? space1[0] : space2[0], firstFreeHeapByte);
+        visitor.range(firstNursery ? nursery1[0] : nursery2[0], firstFreeNurseryByte);
+    }
+
+    @Override
+    public void shutdown() {
+        // no threads of its own
+    }
+
+    @Override
+    public int root(int word) {
+        return forward(word);
+    }
+
+    /**
+     * @return new address of the object if it is in the spaces being collected, the word itself otherwise
+     */
+    private int forward(int word) {
+        boolean young = word >= fromNursery && word < fromNurseryEnd;
+        if (!(young || (word >= fromOld && word < fromOldEnd)) || mm.heapByte(word) != MM.MARKER) {
+            // NULL, tagged small integers, method indexes, classes and objects staying where they are
+            return word;
+        }
+
+        if (mm.heapByte(word + MM.Obj.GC_STATE_OFFSET) == GCState.COPIED.value) {
+            // forward pointer is stored in place of the class pointer
+            return mm.heapInt(word + MM.Obj.CLASS_OFFSET);
+        }
+
+        int size = mm.objectSize(word);
+        int age = young ? mm.heapByte(word + MM.Obj.GC_STATE_OFFSET) - GCState.NORMAL.value + 1 : 0;
+        int to;
+        if (young && (age < collectionPromotionAge || toOldTop + size > toOldEnd)) {
+            to = toNurseryTop;
+            toNurseryTop += size;
+        } else {
+            to = toOldTop;
+            toOldTop += size;
+            age = 0;
+        }
+
+        mm.copyHeap(word, to, size);
+        event.survivors++;
+        event.bytesCopied += size;
+        mm.heapByte(to + MM.Obj.GC_STATE_OFFSET, (byte) (GCState.NORMAL.value + Math.min(age, MAX_AGE)));
+
+        mm.heapByte(word + MM.Obj.GC_STATE_OFFSET, GCState.COPIED.value);
+        mm.heapInt(word + MM.Obj.CLASS_OFFSET, to);
+
+        return to;
+    }
+
+    /**
+     * Forwards the class and fields of a moved or remembered object, old objects left pointing to the nursery are
+     * remembered.
+     *
+     * @return size of the object
+     */
+    private int scanObject(int obj) {
+        int clazz = forward(mm.heapInt(obj + MM.Obj.CLASS_OFFSET));
+        mm.heapInt(obj + MM.Obj.CLASS_OFFSET, clazz);
+        boolean pointsToNursery = isYoung(clazz);
+
+        if (mm.isPointerIndexed(obj)) {
+            int size = mm.length(obj);
+            for (int i = 0; i < size; i++) {
+                int address = obj + MM.Obj.DATA_OFFSET + (i * MM.REF_SIZE);
+                int field = forward(mm.heapInt(address));
+                mm.heapInt(address, field);
+                pointsToNursery |= isYoung(field);
+            }
+        }
+
+        if (pointsToNursery && obj < nurseryStart) {
+            remember(obj);
+        }
+
+        return mm.objectSize(obj);
+    }
+
+    @Override
+    public void writeBarrier(int obj, int value) {
+        if (isYoung(value) && obj < nurseryStart) {
+            remember(obj);
+        }
+    }
+
+    @Override
+    public int readBarrier(int word) {
+        return word;
+    }
+
+    private void remember(int obj) {
+        if (mm.heapByte(obj + MM.Obj.GC_STATE_OFFSET) != GCState.REMEMBERED.value) {
+            mm.heapByte(obj + MM.Obj.GC_STATE_OFFSET, GCState.REMEMBERED.value);
+            if (rememberedCount == rememberedSet.length) {
+                rememberedSet = Arrays.copyOf(rememberedSet, rememberedSet.length * 2);
+            }
+            rememberedSet[rememberedCount++] = obj;
+        }
+    }
+
+}
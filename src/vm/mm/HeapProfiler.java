@@ -0,0 +1,256 @@
+package vm.mm;
+
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Heap profiler of MM, written as JSON by dump.
+ * <p/>
+ * Allocations of the VM are sampled by their site - the method and the bytecode offset of the allocating instruction
+ * and the class of the object. An allocation is sampled whenever another sampleInterval bytes were allocated, so the
+ * samples are spread over the sites by the bytes they allocate, interval 1 samples every allocation. Sites are known in
+ * interpreted code only, the interpreter tells MM the program counter of every instruction while sampling. Objects
+ * allocated by compiled code are counted at the call of its nearest interpreted caller.
+ * <p/>
+ * After every collection the heap is walked and the survivors are recorded together with the bytes allocated since the
+ * previous collection. The histogram of the heap by class is computed by the same walk when the profile is dumped, it
+ * shows live objects only right after a collection.
+ */
+public class HeapProfiler {
+
+    private MM mm;
+
+    private int sampleInterval;
+    private int untilSample;
+
+    // samples by instruction index and class id
+    private Map<Long, Site> sites = new LinkedHashMap<Long, Site>();
+
+    private long allocatedObjects = 0;
+    private long allocatedBytes = 0;
+    private long allocatedSinceCollection = 0;
+
+    private List<long[]> collections = new ArrayList<long[]>();
+
+    /**
+     * @param sampleInterval allocated bytes per sample, 0 samples nothing
+     */
+    public HeapProfiler(int sampleInterval) {
+        this.sampleInterval = sampleInterval;
+        this.untilSample = sampleInterval;
+    }
+
+    void init(MM mm) {
+        this.mm = mm;
+    }
+
+    /**
+     * @return true if allocations are sampled and the interpreter has to keep the program counter in MM
+     */
+    public boolean sampling() {
+        return sampleInterval > 0;
+    }
+
+    /**
+     * Called by the VM for every object it allocates.
+     */
+    public void allocated(Pointer obj) {
+        int size = mm.objectSize(obj.address);
+        allocatedObjects++;
+        allocatedBytes += size;
+        allocatedSinceCollection += size;
+
+        if (sampleInterval > 0) {
+            untilSample -= size;
+            if (untilSample <= 0) {
+                untilSample = sampleInterval;
+                sample(obj, size);
+            }
+        }
+    }
+
+    private void sample(Pointer obj, int size) {
+        int pc = mm.getPC();
+        int classId = obj.$().clazz().$c().id();
+        long key = ((long) pc << 32) | (classId & 0xFFFFFFFFL);
+
+        Site site = sites.get(key);
+        if (site == null) {
+            site = new Site(pc, classId);
+            sites.put(key, site);
+        }
+        site.samples++;
+        site.bytes += size;
+    }
+
+    void collected() {
+        long[] survivors = new long[2];
+        walk(survivors, null);
+        collections.add(new long[]{allocatedSinceCollection, survivors[0], survivors[1]});
+        allocatedSinceCollection = 0;
+    }
+
+    /**
+     * Counts objects and bytes in the heap, by class name if the histogram is given.
+     */
+    private void walk(final long[] total, final Map<String, long[]> histogram) {
+        mm.visitHeap(new GCPolicy.HeapVisitor() {
+            @Override
+            public void range(int start, int end) {
+                int address = start;
+                while (address < end) {
+                    if (mm.heapByte(address) != MM.MARKER) {
+                        // free word
+                        address += MM.WORD_SIZE;
+                        continue;
+                    }
+
+                    int size = mm.objectSize(address);
+                    total[0]++;
+                    total[1] += size;
+                    if (histogram != null) {
+                        String name = className(mm.heapInt(address + MM.Obj.CLASS_OFFSET));
+                        long[] counts = histogram.get(name);
+                        if (counts == null) {
+                            counts = new long[2];
+                            histogram.put(name, counts);
+                        }
+                        counts[0]++;
+                        counts[1] += size;
+                    }
+                    address += size;
+                }
+            }
+        });
+    }
+
+    private String className(int clazz) {
+        if (!mm.isObject(clazz)) {
+            return "<no class>";
+        }
+
+        return new Pointer(clazz, mm).$c().name();
+    }
+
+    /**
+     * @return live objects of the class right after a collection, otherwise garbage is counted too
+     */
+    public long objects(String className) {
+        Map<String, long[]> histogram = new HashMap<String, long[]>();
+        walk(new long[2], histogram);
+        long[] counts = histogram.get(className);
+        return counts == null ? 0 : counts[0];
+    }
+
+    public void dump(PrintWriter out) {
+        // method names by the address of their code
+        Map<Integer, String> methods = new HashMap<Integer, String>();
+        for (Pointer clazz : mm.getClasses()) {
+            Pointer dictionary = clazz.$c().methods();
+            if (dictionary.isNull()) {
+                continue;
+            }
+            for (int i = 0; i < dictionary.$().size(); i++) {
+                Method method = mm.method(dictionary.$p().fieldInt(i) + MM.METHOD_INDEX__MARKER);
+                methods.put(method.bytecodePointer().address, clazz.$c().name() + ">>" + method.selector());
+            }
+        }
+        Map<Integer, String> classes = new HashMap<Integer, String>();
+        for (Pointer clazz : mm.getClasses()) {
+            classes.put(clazz.$c().id(), clazz.$c().name());
+        }
+
+        out.println("{");
+        out.println("  \"allocated\": {\"objects\": " + allocatedObjects + ", \"bytes\": " + allocatedBytes + "},");
+        out.println("  \"sampleInterval\": " + sampleInterval + ",");
+
+        out.print("  \"sites\": [");
+        List<Site> sorted = new ArrayList<Site>(sites.values());
+        Collections.sort(sorted, new Comparator<Site>() {
+            @Override
+            public int compare(Site s1, Site s2) {
+                return s1.bytes == s2.bytes ? 0 : (s1.bytes > s2.bytes ? -1 : 1);
+            }
+        });
+        for (int i = 0; i < sorted.size(); i++) {
+            Site site = sorted.get(i);
+            int address = site.pc >= 0 ? mm.codeAddress(site.pc) : -1;
+            int start = address >= 0 ? mm.codeStart(address) : -1;
+            String method = methods.containsKey(start) ? methods.get(start) : (start >= 0 ? "<program>" : "<unknown>");
+
+            out.print(i == 0 ? "\n" : ",\n");
+            out.print("    {\"method\": " + string(method) + ", \"offset\": " + (address >= 0 ? address - start : -1)
+                    + ", \"class\": " + string(classes.get(site.classId)) + ", \"samples\": " + site.samples
+                    + ", \"bytes\": " + site.bytes + "}");
+        }
+        out.println(sorted.isEmpty() ? "]," : "\n  ],");
+
+        out.print("  \"histogram\": [");
+        final Map<String, long[]> histogram = new HashMap<String, long[]>();
+        walk(new long[2], histogram);
+        List<String> names = new ArrayList<String>(histogram.keySet());
+        Collections.sort(names, new Comparator<String>() {
+            @Override
+            public int compare(String name1, String name2) {
+                long bytes1 = histogram.get(name1)[1];
+                long bytes2 = histogram.get(name2)[1];
+                return bytes1 == bytes2 ? name1.compareTo(name2) : (bytes1 > bytes2 ? -1 : 1);
+            }
+        });
+        for (int i = 0; i < names.size(); i++) {
+            long[] counts = histogram.get(names.get(i));
+            out.print(i == 0 ? "\n" : ",\n");
+            out.print("    {\"class\": " + string(names.get(i)) + ", \"objects\": " + counts[0] + ", \"bytes\": "
+                    + counts[1] + "}");
+        }
+        out.println(names.isEmpty() ? "]," : "\n  ],");
+
+        out.print("  \"collections\": [");
+        for (int i = 0; i < collections.size(); i++) {
+            long[] collection = collections.get(i);
+            out.print(i == 0 ? "\n" : ",\n");
+            out.print("    {\"allocatedBytes\": " + collection[0] + ", \"survivors\": " + collection[1]
+                    + ", \"survivorBytes\": " + collection[2] + "}");
+        }
+        out.println(collections.isEmpty() ? "]" : "\n  ]");
+        out.println("}");
+        out.flush();
+    }
+
+    private static String string(String s) {
+        if (s == null) {
+            return "null";
+        }
+
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\');
+            }
+            if (c < ' ') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static class Site {
+
+        // instruction index of the allocation
+        private int pc;
+        private int classId;
+
+        private long samples = 0;
+        private long bytes = 0;
+
+        Site(int pc, int classId) {
+            this.pc = pc;
+            this.classId = classId;
+        }
+
+    }
+
+}
@@ -0,0 +1,94 @@
+package vm.mm;
+
+/**
+ * Decides the size of the heap after a collection. The heap grows when survivors leave less than MIN_FREE of it free or
+ * when the collector takes more than the GC time ratio of the time, and shrinks when more than MAX_FREE of it stays free
+ * and collections are cheap. The heap never goes below the minimum nor above the maximum size.
+ */
+public class HeapSizing {
+
+    // free part of the heap kept after a collection
+    public static final double MIN_FREE = 0.4;
+    public static final double MAX_FREE = 0.7;
+
+    // share of the time spent collecting, counted from the end of the previous collection
+    public static final double GC_TIME_RATIO = 0.05;
+
+    private int minHeapSize;
+    private int maxHeapSize;
+    private double gcTimeRatio = GC_TIME_RATIO;
+
+    private long collectionStarted;
+    private long collectionFinished = System.nanoTime();
+    private long mutatorTime;
+    private long gcTime;
+
+    public HeapSizing(int minHeapSize, int maxHeapSize) {
+        if (minHeapSize > maxHeapSize) {
+            throw new RuntimeException("Minimal heap size is bigger than the maximal one!");
+        }
+
+        this.minHeapSize = minHeapSize;
+        this.maxHeapSize = maxHeapSize;
+    }
+
+    /**
+     * @param gcTimeRatio time spent collecting above which the heap grows, 1 to size the heap by survivors only
+     */
+    public void gcTimeRatio(double gcTimeRatio) {
+        this.gcTimeRatio = gcTimeRatio;
+    }
+
+    public int minHeapSize() {
+        return minHeapSize;
+    }
+
+    public int maxHeapSize() {
+        return maxHeapSize;
+    }
+
+    void collectionStarted() {
+        collectionStarted = now();
+        mutatorTime = collectionStarted - collectionFinished;
+    }
+
+    /**
+     * Must be called before heapSize, which decides by the time of the collection just finished.
+     */
+    void collectionFinished() {
+        collectionFinished = now();
+        gcTime = collectionFinished - collectionStarted;
+    }
+
+    /**
+     * @return time in nanoseconds, overridden by tests
+     */
+    long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @param heapSize current size of the heap
+     * @param needed   bytes of the heap taken by survivors and the allocation which caused the collection, a copying
+     *                 collector counts both of its spaces
+     * @return new size of the heap
+     */
+    int heapSize(int heapSize, int needed) {
+        // a share of the total time is at most 1, so a ratio of 1 never grows the heap however short the mutator ran
+        boolean expensive = gcTime > gcTimeRatio * (gcTime + mutatorTime);
+
+        long size = heapSize;
+        if (needed > heapSize * (1 - MIN_FREE)) {
+            size = (long) (needed / (1 - MIN_FREE));
+        } else if (needed < heapSize * (1 - MAX_FREE) && !expensive) {
+            size = (long) (needed / (1 - MAX_FREE));
+        }
+
+        if (expensive) {
+            size = Math.max(size, 2L * heapSize);
+        }
+
+        return (int) Math.max(minHeapSize, Math.min(maxHeapSize, size));
+    }
+
+}
@@ -0,0 +1,52 @@
+package vm.mm;
+
+/**
+ * Bytes of the heap of MM. Ints are stored big-endian at addresses aligned to whole ints. Addresses and sizes are
+ * longs, so a storage may take more than 2 GB, MM itself addresses objects by ints and uses at most 2 GB of it.
+ */
+public interface HeapStorage {
+
+    long size();
+
+    byte get(long address);
+
+    void put(long address, byte value);
+
+    int getInt(long address);
+
+    void putInt(long address, int value);
+
+    /**
+     * Reads an int written by another thread, see putIntVolatile.
+     */
+    int getIntVolatile(long address);
+
+    /**
+     * Writes an int such that a thread reading it by getIntVolatile sees all writes made before.
+     */
+    void putIntVolatile(long address, int value);
+
+    /**
+     * Atomically writes the int if it holds the expected value, with the memory effects of both volatile accesses.
+     *
+     * @return true if the int was written
+     */
+    boolean compareAndSetInt(long address, int expected, int value);
+
+    void get(long address, byte[] into, int length);
+
+    void put(long address, byte[] from, int length);
+
+    /**
+     * Copies bytes within the heap, the ranges may overlap.
+     */
+    void copy(long from, long to, long length);
+
+    void fill(long address, long length, byte value);
+
+    /**
+     * Bytes beyond the new size are lost, new bytes are not initialized.
+     */
+    void resize(long size);
+
+}
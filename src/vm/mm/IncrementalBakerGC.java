@@ -0,0 +1,280 @@
+package vm.mm;
+
+/**
+ * Incremental semispace copying collector after Baker. A collection cycle starts by flipping the semispaces and copying
+ * the objects referenced by the roots, so the pause depends on the number of roots only. The copied objects are then
+ * scanned a few at a time, every allocation scans workRatio times as many bytes as it allocates, and the from-space is
+ * cleared the same way once everything is copied.
+ * <p/>
+ * The mutator never sees a from-space pointer. Roots are forwarded at the flip and the read barrier forwards every
+ * pointer loaded from an object, so the stack, arguments and locals hold to-space pointers only and do not need a
+ * barrier of their own. Copied objects grow from the start of to-space, new objects from its end. They are allocated
+ * black - their fields can hold to-space pointers only, so they are never scanned.
+ * <p/>
+ * Copying never runs out of memory, so the read barrier, and with it every load of a field or a class by the
+ * interpreter and the syscalls, never fails. A cycle starts with to-space empty and from-space holds at most a
+ * semispace of objects, so allocation keeps the bytes of from-space objects not copied yet free in to-space. A cycle
+ * starts once the free bytes would not take all the objects in use, so that allocation can go on while it runs. If
+ * allocation would take the reserved bytes before the cycle ends, the rest of the cycle is done at once.
+ */
+public class IncrementalBakerGC implements GCPolicy, GCPolicy.RootVisitor {
+
+    // bytes scanned or cleared per allocated byte while a cycle is running
+    public static final int WORK_RATIO = 4;
+
+    private MM mm;
+
+    private int workRatio;
+
+    boolean firstSpace;
+    private int[] space1;
+    private int[] space2;
+
+    // current space - copied objects, free bytes and new objects
+    private int copyTop;
+    private int allocBottom;
+
+    // first copied object not scanned yet
+    private int scan;
+
+    // bytes of from-space objects of a running cycle which may still be copied, kept free between copyTop and
+    // allocBottom
+    private int uncopied;
+
+    // from-space of a running cycle, empty range once everything is copied
+    private int fromStart;
+    private int fromEnd;
+
+    // event of a running cycle and the time spent in its flip and steps until everything was copied
+    private GCEvent event;
+    private long pause;
+
+    // parts of from-space left to be cleared, the free bytes between its objects are clear already
+    private int clearTop;
+    private int clearEnd;
+    private int gapStart;
+    private int gapEnd;
+
+    private boolean collecting = false;
+
+    public IncrementalBakerGC() {
+        this(WORK_RATIO);
+    }
+
+    /**
+     * @param workRatio bytes scanned per allocated byte, a bigger ratio gives longer pauses but shorter cycles
+     */
+    public IncrementalBakerGC(int workRatio) {
+        this.workRatio = workRatio;
+    }
+
+    @Override
+    public void init(MM mm, int start, int heapSize) {
+        this.mm = mm;
+
+        int half = heapSize / 2 / MM.WORD_SIZE * MM.WORD_SIZE;
+        space1 = new int[]{start, start + half};
+        space2 = new int[]{start + half, start + 2 * half};
+        firstSpace = true;
+        copyTop = scan = space1[0];
+        allocBottom = space1[1];
+    }
+
+    /**
+     * @return true while a collection cycle is running
+     */
+    public boolean collecting() {
+        return collecting;
+    }
+
+    @Override
+    public int alloc(int size) {
+        if (collecting) {
+            step(workRatio * size);
+        } else if (allocBottom - copyTop - size < used()) {
+            flip();
+            step(workRatio * size);
+        }
+
+        if (copyTop + uncopied + size > allocBottom) {
+            step(Integer.MAX_VALUE);
+
+            if (copyTop + size > allocBottom) {
+                flip();
+                step(Integer.MAX_VALUE);
+            }
+
+            if (copyTop + size > allocBottom) {
+                throw new RuntimeException("Not enough memory!");
+            }
+        }
+
+        allocBottom -= size;
+        return allocBottom;
+    }
+
+    @Override
+    public void writeBarrier(int obj, int value) {
+        // the mutator stores to-space pointers only
+    }
+
+    @Override
+    public int readBarrier(int word) {
+        return forward(word);
+    }
+
+    @Override
+    public void collect() {
+        if (collecting) {
+            step(Integer.MAX_VALUE);
+        }
+
+        flip();
+        step(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Starts a cycle, the roots are copied to the other semispace.
+     */
+    private void flip() {
+        uncopied = used();
+        event = mm.collectionStarted("Incremental", uncopied);
+
+        int[] from = firstSpace ? space1 : space2;
+        int[] to = firstSpace ? space2 : space1;
+
+        fromStart = from[0];
+        fromEnd = from[1];
+
+        clearTop = from[0];
+        clearEnd = from[1];
+        gapStart = copyTop;
+        gapEnd = allocBottom;
+
+        firstSpace = !firstSpace;
+        copyTop = scan = to[0];
+        allocBottom = to[1];
+        collecting = true;
+
+        event.roots = mm.visitRoots(this);
+        pause = System.nanoTime() - event.start();
+    }
+
+    /**
+     * @return bytes of copied and new objects in the current semispace
+     */
+    private int used() {
+        int[] space = firstSpace ? space1 : space2;
+        return (copyTop - space[0]) + (space[1] - allocBottom);
+    }
+
+    /**
+     * Scans copied objects and then clears from-space, until about work bytes are done or the cycle ends.
+     */
+    private void step(int work) {
+        // clearing is not a part of the pause
+        long stepStart = fromStart != fromEnd ? System.nanoTime() : 0;
+
+        while (work > 0 && scan < copyTop) {
+            int size = scanObject(scan);
+            scan += size;
+            work -= size;
+        }
+
+        if (scan < copyTop) {
+            pause += System.nanoTime() - stepStart;
+            return;
+        }
+
+        if (fromStart != fromEnd) {
+            // nothing points to from-space any more
+            fromStart = fromEnd = 0;
+            uncopied = 0;
+
+            mm.collected(used(), pause + System.nanoTime() - stepStart);
+            event = null;
+        }
+
+        while (work > 0 && clearTop < clearEnd) {
+            if (clearTop == gapStart && gapStart < gapEnd) {
+                clearTop = gapEnd;
+                continue;
+            }
+
+            int size = Math.min(work, (clearTop < gapStart ? gapStart : clearEnd) - clearTop);
+            mm.clearHeap(clearTop, size);
+            clearTop += size;
+            work -= size;
+        }
+
+        if (clearTop >= clearEnd) {
+            collecting = false;
+        }
+    }
+
+    /**
+     * Objects of from-space not copied yet by a running cycle are left out.
+     */
+    @Override
+    public void visitHeap(HeapVisitor visitor) {
+        int[] space = firstSpace ? space1 : space2;
+        visitor.range(space[0], copyTop);
+        visitor.range(allocBottom, space[1]);
+    }
+
+    @Override
+    public void shutdown() {
+        // no threads of its own
+    }
+
+    @Override
+    public int root(int word) {
+        return forward(word);
+    }
+
+    /**
+     * @return size of the object
+     */
+    private int scanObject(int obj) {
+        mm.heapInt(obj + MM.Obj.CLASS_OFFSET, forward(mm.heapInt(obj + MM.Obj.CLASS_OFFSET)));
+        if (mm.isPointerIndexed(obj)) {
+            int size = mm.length(obj);
+            for (int i = 0; i < size; i++) {
+                int address = obj + MM.Obj.DATA_OFFSET + (i * MM.REF_SIZE);
+                mm.heapInt(address, forward(mm.heapInt(address)));
+            }
+        }
+
+        return mm.objectSize(obj);
+    }
+
+    /**
+     * @return new address of the object, the word itself if it is not an object in from-space
+     */
+    private int forward(int word) {
+        // NULL, tagged small integers and method indexes are negative, classes are in the metaspace
+        if (word < fromStart || word >= fromEnd || mm.heapByte(word) != MM.MARKER) {
+            return word;
+        }
+
+        if (mm.heapByte(word + MM.Obj.GC_STATE_OFFSET) == GCState.COPIED.value) {
+            // forward pointer is stored in place of the class pointer
+            return mm.heapInt(word + MM.Obj.CLASS_OFFSET);
+        }
+
+        // the bytes are reserved by alloc
+        int size = mm.objectSize(word);
+        int to = copyTop;
+        mm.copyHeap(word, to, size);
+        copyTop += size;
+        uncopied -= size;
+        event.survivors++;
+        event.bytesCopied += size;
+
+        mm.heapByte(word + MM.Obj.GC_STATE_OFFSET, GCState.COPIED.value);
+        mm.heapInt(word + MM.Obj.CLASS_OFFSET, to);
+
+        return to;
+    }
+
+}
@@ -0,0 +1,152 @@
+package vm.mm;
+
+/**
+ * Part of the heap for large objects, which are never moved. Objects are allocated first-fit from a list of free
+ * blocks, the collector owning the space marks the live ones and sweep frees the rest.
+ * <p/>
+ * The list of objects and the free list are kept outside of the heap, in arrays sorted by address, so a large object
+ * needs no extra header and free blocks of any size can be used. The arrays are sized for the most objects the space
+ * can hold, there is a free block before every object at most and one after the last one, so sweep never grows them.
+ */
+class LargeObjectSpace {
+
+    private MM mm;
+
+    private int start;
+    private int end;
+
+    private int[] objects;
+    private int[] objectSizes;
+    private int objectCount = 0;
+
+    private int[] free;
+    private int[] freeSizes;
+    private int freeCount = 0;
+
+    /**
+     * @param maxObjects most objects the space can hold, its size divided by the size of the smallest large object
+     */
+    LargeObjectSpace(MM mm, int start, int end, int maxObjects) {
+        this.mm = mm;
+        this.start = start;
+        this.end = end;
+
+        objects = new int[maxObjects];
+        objectSizes = new int[maxObjects];
+        free = new int[maxObjects + 1];
+        freeSizes = new int[maxObjects + 1];
+
+        free[0] = start;
+        freeSizes[0] = end - start;
+        freeCount = 1;
+    }
+
+    boolean contains(int word) {
+        return word >= start && word < end;
+    }
+
+    /**
+     * @return address of the object, -1 if no free block is big enough
+     */
+    int alloc(int size) {
+        if (objectCount == objects.length) {
+            return -1;
+        }
+
+        for (int i = 0; i < freeCount; i++) {
+            if (freeSizes[i] >= size) {
+                int address = free[i];
+                free[i] += size;
+                freeSizes[i] -= size;
+                if (freeSizes[i] == 0) {
+                    System.arraycopy(free, i + 1, free, i, freeCount - i - 1);
+                    System.arraycopy(freeSizes, i + 1, freeSizes, i, freeCount - i - 1);
+                    freeCount--;
+                }
+
+                insertObject(address, size);
+                return address;
+            }
+        }
+
+        return -1;
+    }
+
+    private void insertObject(int address, int size) {
+        int i = objectCount;
+        while (i > 0 && objects[i - 1] > address) {
+            objects[i] = objects[i - 1];
+            objectSizes[i] = objectSizes[i - 1];
+            i--;
+        }
+        objects[i] = address;
+        objectSizes[i] = size;
+        objectCount++;
+    }
+
+    /**
+     * @return true if the object was not marked before and its fields have to be scanned
+     */
+    boolean mark(int obj) {
+        if (mm.heapByte(obj + MM.Obj.GC_STATE_OFFSET) == GCState.MARKED.value) {
+            return false;
+        }
+
+        mm.heapByte(obj + MM.Obj.GC_STATE_OFFSET, GCState.MARKED.value);
+        return true;
+    }
+
+    /**
+     * Frees objects which were not marked and unmarks the others. Free blocks are rebuilt from the gaps between the
+     * survivors, so neighbouring free blocks are always joined.
+     *
+     * @return bytes freed
+     */
+    int sweep() {
+        int freed = 0;
+        int survivors = 0;
+        freeCount = 0;
+        int top = start;
+        for (int i = 0; i < objectCount; i++) {
+            int obj = objects[i];
+            if (mm.heapByte(obj + MM.Obj.GC_STATE_OFFSET) == GCState.MARKED.value) {
+                mm.heapByte(obj + MM.Obj.GC_STATE_OFFSET, GCState.NORMAL.value);
+                addFree(top, obj - top);
+                top = obj + objectSizes[i];
+                objects[survivors] = obj;
+                objectSizes[survivors] = objectSizes[i];
+                survivors++;
+            } else {
+                // new objects expect a cleared heap
+                mm.clearHeap(obj, objectSizes[i]);
+                freed += objectSizes[i];
+            }
+        }
+        addFree(top, end - top);
+        objectCount = survivors;
+
+        return freed;
+    }
+
+    private void addFree(int address, int size) {
+        if (size == 0) {
+            return;
+        }
+
+        free[freeCount] = address;
+        freeSizes[freeCount] = size;
+        freeCount++;
+    }
+
+    /**
+     * @return free bytes, not necessarily in one block
+     */
+    int free() {
+        int bytes = 0;
+        for (int i = 0; i < freeCount; i++) {
+            bytes += freeSizes[i];
+        }
+        return bytes;
+    }
+
+}
@@ -1,11 +1,11 @@
 package vm.mm;
 
 import vm.Bytecode;
-import vm.Util;
 
 import java.io.PrintWriter;
 import java.util.*;
 
+import static vm.Util.DEBUG;
 import static vm.Util.debug;
 
 public class MM {
@@ -16,28 +16,76 @@ public class MM {
 
     public static final int REF_SIZE = WORD_SIZE;
 
-    // MARKER + OBJ_KIND + GC_STATE + SIZE + CLASS
-    public static final int HEADER_SIZE = 1 + 1 + 1 + WORD_SIZE + REF_SIZE;
+    // Objects start at word boundaries with a header word, a size word and a class pointer. The header word holds the
+    // marker in its highest byte, GC state in the next one, then the kind bit. The size word holds the number of fields
+    // or bytes. All words of an object are aligned, so the header, the size, the class and the fields are read by
+    // single int reads. Byte-indexed objects are padded to whole words.
+    public static final int HEADER_SIZE = 2 * WORD_SIZE + REF_SIZE;
 
     public static final byte MARKER = (byte) 0xF0;
 
+    // kind bit of the header word, set for byte-indexed objects
+    private static final int BYTE_INDEXED_BIT = 0x8000;
+
+    // the size word keeps 31 bits, the object in bytes must fit the int address space as well
+    public static final int MAX_OBJECT_SIZE = Integer.MAX_VALUE;
+
     public static final byte FREE_MARKER = (byte) -1;
 
+    // default bytes at the start of the heap storage for classes and method dictionaries, room for about a hundred
+    // classes, the constructors taking metaspaceSize set another size
+    public static final int METASPACE_SIZE = 8 * 1024;
+
+    // handles open at once, the slots are allocated up front so that native code holding handles allocates only
+    // in the heap
+    public static final int MAX_HANDLES = 1024;
+
     public static final int METHOD_INDEX__MARKER = 9999;
 
+    public static final int END_OF_PROGRAM = -1;
+
+    // return address of frames created by compiled code, the interpreter returns to its caller instead of continuing
+    public static final int RETURN_TO_COMPILED = -2;
+
+    // Small integers are stored directly in the pointer, tagged by the two highest bits being 10. Objects live in the
+    // non-negative address space and all other negative words (NULL, frame addresses, method indexes) are far from the
+    // tagged range, so a tagged integer is never mistaken for anything else.
+    public static final int SMALL_INT_TAG = 0x80000000;
+
+    public static final int SMALL_INT_TAG_MASK = 0xC0000000;
+
+    public static final int SMALL_INT_MIN = -(1 << 29);
+
+    public static final int SMALL_INT_MAX = (1 << 29) - 1;
+
+    // same as a word of free memory
     public final Pointer NULL = new Pointer(0xFFFFFFFF, this);
 
     private byte[] code;
     private int firstFreeCodeByte = 0;
 
-    private byte[] heap;
-    private int firstFreeHeapByte;
+    // decoded instruction stream: opcode followed by its already decoded arguments
+    private int[] instructions;
+    private int firstFreeInstruction = 0;
+    // code address -> index of the decoded instruction
+    private int[] instructionIndexes;
+
+    private HeapStorage heap;
+    // size of the storage, the bound of object addresses
+    private int heapEnd;
+
+    // Classes and method dictionaries are allocated in the metaspace, from 0 to metaspaceSize, and the GC policy manages
+    // the rest of the storage. Metaspace objects are never moved or freed and point only to each other, so GC neither
+    // traces nor scans them and their addresses can be cached.
+    private int metaspaceSize;
+    private int metaspaceTop = 0;
 
-    boolean firstSpace;
-    private int[] space1;
-    private int[] space2;
+    private GCPolicy gc;
 
-    private byte[] stack;
+    private int[] stack;
+    // Tag of every stack slot, true for values - pointers, tagged small integers and NULL. Other words are raw, such as
+    // caller and return addresses of frames or integer operands like field indexes, and GC never looks at them.
+    private boolean[] references;
     private int stackPointer = 0;
     private int basePointer = NULL.address;
 
@@ -45,369 +93,668 @@ public class MM {
 
     private List<Object> constantPool;
 
-    private CodePointer programCounter = new CodePointer(0, this);
+    // interned selectors, symbol is the index into the list of names
+    private Map<String, Integer> symbols;
+    private List<String> symbolNames;
+    // symbol of a string constant + 1, 0 if not interned yet
+    private int[] constantSymbols;
+
+    // index into the decoded instruction stream
+    private int programCounter = 0;
+
+    // start addresses of the stored pieces of code, a method or a program each
+    private List<Integer> codeStarts;
 
     private List<Pointer> classes;
+    // incremented whenever a method dictionary of a class changes, method caches are valid only for one version
+    private int methodsVersion = 0;
     private List<Pointer> methodDictionaries;
-    private Set<Pointer> protectedPointers;
+
+    // root slots of the open handle scopes, the innermost scope ends at handleTop
+    private int[] handles = new int[MAX_HANDLES];
+    private int handleTop = 0;
+
+    // null when the heap is not profiled
+    private HeapProfiler profiler;
+
+    // walked by index, GC must not allocate an iterator
+    private List<GCListener> gcListeners = new ArrayList<GCListener>();
+    // reused for every collection
+    private GCEvent gcEvent = new GCEvent();
 
     public MM(int codeSize, int heapSize, int stackSize) {
+        this(codeSize, heapSize, stackSize, new BakerGC());
+    }
+
+    /**
+     * @param heapSize bytes of the heap, the metaspace is added to them
+     * @param gc       garbage collector managing the heap, not shared with any other MM
+     */
+    public MM(int codeSize, int heapSize, int stackSize, GCPolicy gc) {
+        this(codeSize, heapSize, stackSize, gc, METASPACE_SIZE);
+    }
+
+    /**
+     * @param metaspaceSize bytes of the metaspace, added to the heap
+     */
+    public MM(int codeSize, int heapSize, int stackSize, int metaspaceSize) {
+        this(codeSize, heapSize, stackSize, new BakerGC(), metaspaceSize);
+    }
+
+    /**
+     * @param heapSize      bytes of the heap, the metaspace is added to them
+     * @param gc            garbage collector managing the heap, not shared with any other MM
+     * @param metaspaceSize bytes of the metaspace for classes and method dictionaries, it does not grow
+     */
+    public MM(int codeSize, int heapSize, int stackSize, GCPolicy gc, int metaspaceSize) {
+        this(codeSize, new ArrayStorage(align(metaspaceSize) + heapSize), stackSize, gc, metaspaceSize);
+    }
+
+    /**
+     * @param heap bytes of the metaspace and the heap, a DirectStorage keeps them outside of the Java heap, at most
+     *             Integer.MAX_VALUE of them as objects are addressed by ints
+     * @param gc   garbage collector managing the heap, not shared with any other MM
+     */
+    public MM(int codeSize, HeapStorage heap, int stackSize, GCPolicy gc) {
+        this(codeSize, heap, stackSize, gc, METASPACE_SIZE);
+    }
+
+    /**
+     * @param metaspaceSize bytes at the start of the heap storage used as the metaspace
+     */
+    public MM(int codeSize, HeapStorage heap, int stackSize, GCPolicy gc, int metaspaceSize) {
         code = new byte[codeSize];
-        clear(code, 0, codeSize);
+        Arrays.fill(code, FREE_MARKER);
+
+        // decoded instruction never takes more ints than it took bytes
+        instructions = new int[codeSize];
+        instructionIndexes = new int[codeSize];
+        Arrays.fill(instructionIndexes, -1);
 
-        heap = new byte[heapSize];
-        clear(heap, 0, heapSize);
+        // objects are addressed by ints
+        if (heap.size() > Integer.MAX_VALUE) {
+            throw new RuntimeException("Heap too big!");
+        }
+        this.heap = heap;
+        heapEnd = (int) heap.size();
+        clearHeap(0, heapEnd);
+        this.metaspaceSize = align(metaspaceSize);
+        if (this.metaspaceSize > heapEnd) {
+            throw new RuntimeException("Metaspace does not fit into the heap!");
+        }
 
-        stack = new byte[stackSize];
-        clear(stack, 0, stackSize);
+        stack = new int[stackSize / WORD_SIZE];
+        Arrays.fill(stack, NULL.address);
+        references = new boolean[stack.length];
 
         methods = new ArrayList<Method>();
         constantPool = new ArrayList<Object>();
+        symbols = new HashMap<String, Integer>();
+        symbolNames = new ArrayList<String>();
+        constantSymbols = new int[0];
         classes = new ArrayList<Pointer>();
         methodDictionaries = new ArrayList<Pointer>();
-        protectedPointers = new HashSet<Pointer>();
+        codeStarts = new ArrayList<Integer>();
 
-        space1 = new int[]{0, heapSize / 2};
-        space2 = new int[]{heapSize / 2, heapSize};
-        firstSpace = true;
-        firstFreeHeapByte = space1[0];
+        this.gc = gc;
+        gc.init(this, this.metaspaceSize, heapEnd - this.metaspaceSize);
     }
 
+    /**
+     * @return free bytes, see GCPolicy.alloc
+     */
     public Pointer alloc(int size) {
-        debug("Trying to allocate " + size + " bytes at " + firstFreeHeapByte);
-        Pointer p;
-        int max = firstSpace ? space1[1] : space2[1];
-        if (firstFreeHeapByte + size <= max) {
-            p = new Pointer(firstFreeHeapByte, this);
-            clear(heap, firstFreeHeapByte, size);
-            firstFreeHeapByte += size;
-        } else {
-            // garbage collection
-            int freeBefore = firstSpace ? (space1[1] - firstFreeHeapByte) : (space2[1] - firstFreeHeapByte);
-            int baker = baker();
-            flip();
-            int freeAfter = firstSpace ? (space1[1] - baker) : (space2[1] - baker);
-
-            System.out.println(freeAfter - freeBefore + " bytes made free.");
-
-            debug("Before GC: " + freeBefore + " B");
-            debug("After GC: " + freeAfter + " B");
-
-            firstFreeHeapByte = baker;
-
-            max = firstSpace ? space1[1] : space2[1];
-            if (firstFreeHeapByte + size <= max) {
-                p = new Pointer(firstFreeHeapByte, this);
-                clear(heap, firstFreeHeapByte, size);
-                firstFreeHeapByte += size;
-            } else {
-                throw new RuntimeException("Not enough memory!");
-            }
+        size = align(size);
+        int address = gc.alloc(size);
+
+        if (DEBUG) {
+            debug("Allocated " + size + " bytes at " + address);
         }
+        return new Pointer(address, this);
+    }
 
-        debug("Allocated " + size + " bytes at " + p.address);
-        return p;
+    /**
+     * Allocates an object and writes its header and class at once. Words of free memory are NULL, so fields of a new
+     * pointer-indexed object need not be written.
+     *
+     * @param size number of fields or bytes
+     * @return address of the object
+     */
+    public int allocObject(ObjectKind kind, int size, Pointer clazz) {
+        int bytes = kind == ObjectKind.POINTER_INDEXED ? pointerIndexedObjectSize(size) : byteIndexedObjectSize(size);
+        int address = gc.alloc(bytes);
+
+        if (DEBUG) {
+            debug("Allocated " + bytes + " bytes at " + address);
+        }
+
+        heap.putInt(address, header(kind, GCState.NORMAL));
+        heap.putInt(address + Obj.SIZE_OFFSET, size);
+        gc.writeBarrier(address, clazz.address);
+        heap.putInt(address + Obj.CLASS_OFFSET, clazz.address);
+        return address;
     }
 
-    public int baker() {
-        System.out.println("Baker Garbage Collector");
+    /**
+     * Allocates a byte-indexed object holding the bytes.
+     *
+     * @return address of the object
+     */
+    public int allocObject(byte[] bytes, Pointer clazz) {
+        int address = allocObject(ObjectKind.BYTE_INDEXED, bytes.length, clazz);
+        heap.put(address + Obj.DATA_OFFSET, bytes, bytes.length);
+        return address;
+    }
 
-        Set<Pointer> rootSet = new HashSet<Pointer>(classes);
-        rootSet.addAll(methodDictionaries);
-        rootSet.addAll(scanStack());
+    /**
+     * Allocates an object in the metaspace, for classes and method dictionaries. It is never freed.
+     *
+     * @param size  number of fields
+     * @param clazz metaspace object or NULL
+     * @return address of the object, it never changes
+     */
+    public int allocMetaspaceObject(int size, Pointer clazz) {
+        int bytes = pointerIndexedObjectSize(size);
+        if (metaspaceTop + bytes > metaspaceSize) {
+            throw new RuntimeException("Metaspace full!");
+        }
 
-        int nextAllocationPointer = firstSpace ? space2[0] : space1[0];
-        int scanPointer = nextAllocationPointer;
+        int address = metaspaceTop;
+        metaspaceTop += bytes;
 
-        int objectSizeInBytes = 0;
+        heap.putInt(address, header(ObjectKind.POINTER_INDEXED, GCState.NORMAL));
+        heap.putInt(address + Obj.SIZE_OFFSET, size);
+        metaspaceBarrier(clazz.address);
+        heap.putInt(address + Obj.CLASS_OFFSET, clazz.address);
+        return address;
+    }
 
-        Map<Integer, Integer> replaceTable = new HashMap<Integer, Integer>();
+    /**
+     * @return true if the word points into the metaspace
+     */
+    public boolean inMetaspace(int word) {
+        return word >= 0 && word < metaspaceSize;
+    }
 
-        for (Pointer root : rootSet) {
-            debug("Baker: copying root " + root.address + " at " + nextAllocationPointer);
-            objectSizeInBytes = copyObject(root, nextAllocationPointer);
+    /**
+     * Called before a pointer is stored into an object, besides the barrier of the GC policy. Metaspace is not scanned
+     * by GC, so its objects must not point to the heap.
+     */
+    private void writeBarrier(int obj, int value) {
+        if (obj < metaspaceSize) {
+            metaspaceBarrier(value);
+        }
+        gc.writeBarrier(obj, value);
+    }
 
-            debug("putting for replacement " + root.address);
-            replaceTable.put(root.address, nextAllocationPointer);
+    private void metaspaceBarrier(int value) {
+        if (value >= metaspaceSize) {
+            throw new RuntimeException("Metaspace object cannot point to the heap!");
+        }
+    }
+
+    /**
+     * @return true if the value fits into a tagged small integer
+     */
+    public static boolean isSmallInteger(int value) {
+        return value >= SMALL_INT_MIN && value <= SMALL_INT_MAX;
+    }
+
+    public static int tagSmallInteger(int value) {
+        return SMALL_INT_TAG | (value & ~SMALL_INT_TAG_MASK);
+    }
+
+    public static int untagSmallInteger(int word) {
+        // shifting left and back right arithmetically drops the tag and restores the sign
+        return (word << 2) >> 2;
+    }
 
-            // setting GC state
-            root.$().gcState(GCState.COPIED);
+    public static boolean isTaggedSmallInteger(int word) {
+        return (word & SMALL_INT_TAG_MASK) == SMALL_INT_TAG;
+    }
 
-            // setting forward pointer, misusing class pointer because we don't need it anymore
-            root.$().clazz(new Pointer(nextAllocationPointer, this));
+    public Pointer smallInteger(int value) {
+        return new Pointer(tagSmallInteger(value), this);
+    }
 
-            root.address = nextAllocationPointer;
+    /**
+     * Opens a handle scope for native code holding pointers across allocations. Handles created in the scope are GC
+     * roots until it is closed, scopes are closed in the reverse order of opening.
+     *
+     * @return scope to be passed to closeHandleScope
+     */
+    public int openHandleScope() {
+        return handleTop;
+    }
 
-            nextAllocationPointer += objectSizeInBytes;
+    /**
+     * Drops the handles created since the scope was opened, scopes opened inside it are closed too.
+     */
+    public void closeHandleScope(int scope) {
+        handleTop = scope;
+    }
 
-            debug("NEXT: " + nextAllocationPointer);
+    /**
+     * The pointer itself is not updated by GC, the object is read back by handle after every allocation.
+     *
+     * @return handle of the object in the innermost open scope
+     */
+    public int newHandle(Pointer p) {
+        if (handleTop == MAX_HANDLES) {
+            throw new RuntimeException("Too many handles!");
         }
+        handles[handleTop] = p.address;
+        return handleTop++;
+    }
 
-        objectSizeInBytes = 0;
-        while (scanPointer < nextAllocationPointer) {
-            debug("SCAN POINTER: " + scanPointer);
+    /**
+     * @return current address of the object of the handle
+     */
+    public Pointer handle(int handle) {
+        return new Pointer(handles[handle], this);
+    }
 
-            Pointer obj = new Pointer(scanPointer, this);
+    /**
+     * Passes GC roots to the visitor and replaces them with the returned values. Roots are object pointers in the value
+     * slots of the stack and in the handles, metaspace objects are never passed. Object fields are not
+     * typed, so a value slot is still checked to point to an object, an integer operand stored into a field and read
+     * back could be there.
+     *
+     * @return number of roots visited
+     */
+    int visitRoots(GCPolicy.RootVisitor visitor) {
+        int roots = 0;
+        for (int i = 0; i < stackPointer; i++) {
+            if (references[i] && stack[i] >= metaspaceSize && isObject(stack[i])) {
+                stack[i] = visitor.root(stack[i]);
+                roots++;
+            }
+        }
 
-            int objectSize;
+        for (int i = 0; i < handleTop; i++) {
+            if (handles[i] >= metaspaceSize && isObject(handles[i])) {
+                handles[i] = visitor.root(handles[i]);
+                roots++;
+            }
+        }
+        return roots;
+    }
 
-            if (obj.$().kind() == ObjectKind.POINTER_INDEXED) {
-                objectSize = pointerIndexedObjectSize(obj.$().size());
+    /**
+     * @return true if the word points to the first byte of an object
+     */
+    boolean isObject(int word) {
+        return word >= 0 && word < heapEnd && word % WORD_SIZE == 0 && heap.get(word) == MARKER;
+    }
 
-                if (replaceTable.containsKey(obj.$().clazz().address)) {
-                    obj.$().clazz(obj.$().clazz().$().clazz());
-                    // obj.$().clazz(new Pointer(replaceTable.get(obj.$().clazz().address), this));
-                }
+    // Raw heap access used by GC policies.
 
-                int size = obj.$().size();
+    byte heapByte(int address) {
+        return heap.get(address);
+    }
 
-                for (int i = 0; i < size; i++) {
-                    Pointer field = obj.$p().field(i);
+    void heapByte(int address, byte value) {
+        heap.put(address, value);
+    }
 
-                    if (field.address >= 0) {
-                        if (field.$().gcState() == GCState.NORMAL) {
-                            if (field.$unsafe().marker() == MARKER) {
-                                debug("Baker: copying field " + field.address + " at " + nextAllocationPointer);
-                                objectSizeInBytes = copyObject(field, nextAllocationPointer);
+    int heapInt(int address) {
+        return heap.getInt(address);
+    }
 
-                                obj.$p().field(i, new Pointer(nextAllocationPointer, this));
+    void heapInt(int address, int value) {
+        heap.putInt(address, value);
+    }
 
-                                field.$().gcState(GCState.COPIED);
-                                field.$().clazz(new Pointer(nextAllocationPointer, this));
+    int heapIntVolatile(int address) {
+        return heap.getIntVolatile(address);
+    }
 
-                                nextAllocationPointer += objectSizeInBytes;
+    void heapIntVolatile(int address, int value) {
+        heap.putIntVolatile(address, value);
+    }
 
-                                debug("NEXT: " + nextAllocationPointer);
-                            } else {
-                                //  it is not a normal pointer-based object
-                                // it is a method dictionary containing indexes of methods
-                                // doesn't need to be copied, already there
-                            }
-                        } else {
-                            debug("Baker: using FP " + field.address + " at " + field.$().clazz().address);
+    boolean compareAndSetHeapInt(int address, int expected, int value) {
+        return heap.compareAndSetInt(address, expected, value);
+    }
 
-                            // using the forward pointer
-                            obj.$p().field(i, field.$().clazz());
-                        }
-                    }
-                }
-            } else {
-                objectSize = byteIndexedObjectSize(obj.$().size());
-            }
+    void copyHeap(int from, int to, int size) {
+        heap.copy(from, to, size);
+    }
 
-            scanPointer += objectSize;
+    void clearHeap(int from, int size) {
+        if (size > 0 && from + size <= heapEnd) {
+            heap.fill(from, size, FREE_MARKER);
         }
+    }
 
-        replaceOnStack(replaceTable);
-        replaceProtected(replaceTable);
+    /**
+     * Objects beyond the new size are lost, new bytes are free.
+     *
+     * @param size bytes of the heap without the metaspace
+     */
+    void resizeHeap(int size) {
+        int oldSize = heapEnd;
+        heap.resize(metaspaceSize + size);
+        heapEnd = metaspaceSize + size;
+        clearHeap(oldSize, heapEnd - oldSize);
+    }
 
-        return nextAllocationPointer;
+    /**
+     * @return bytes of the heap managed by GC, without the metaspace
+     */
+    public int heapSize() {
+        return heapEnd - metaspaceSize;
     }
 
-    private int copyObject(Pointer obj, int to) {
-        int objectSize = 0;
-        switch (obj.$().kind()) {
-            case POINTER_INDEXED:
-                objectSize = pointerIndexedObjectSize(obj.$().size());
-                break;
-            case BYTE_INDEXED:
-                objectSize = byteIndexedObjectSize(obj.$().size());
-                break;
+    /**
+     * Starts profiling of the heap, null stops it.
+     */
+    public void profiler(HeapProfiler profiler) {
+        this.profiler = profiler;
+        if (profiler != null) {
+            profiler.init(this);
         }
+    }
 
-        debug("Copying object " + obj.address + " to " + to + " size " + objectSize);
-        System.arraycopy(heap, obj.address, heap, to, objectSize);
+    public HeapProfiler profiler() {
+        return profiler;
+    }
 
-        return objectSize;
+    /**
+     * Listeners are told about every collection after it finished.
+     */
+    public void addGCListener(GCListener listener) {
+        gcListeners.add(listener);
     }
 
-    public Set<Pointer> scanStack() {
-        Set<Pointer> active = new HashSet<Pointer>();
+    public void removeGCListener(GCListener listener) {
+        gcListeners.remove(listener);
+    }
 
-        int gcStackPointer = 0;
-        while (gcStackPointer <= stackPointer) {
-            Pointer p = retrievePointer(stack, gcStackPointer);
-            if (p.address >= 0) {
-                // is object
-                if (p.$unsafe().marker() == MARKER) {
-                    active.add(retrievePointer(stack, gcStackPointer));
-                } else {
-                    // skipping not objects - integers such as return address and caller frame address
-                }
-            }
+    /**
+     * Called by GC policies at the start of every collection, the policy fills the counts of the returned event.
+     *
+     * @param collector  name of the collection passed to the listeners
+     * @param usedBefore bytes of objects in the heap
+     */
+    GCEvent collectionStarted(String collector, int usedBefore) {
+        gcEvent.start(collector, System.nanoTime());
+        gcEvent.usedBefore = usedBefore;
+        return gcEvent;
+    }
+
+    /**
+     * Called by GC policies at the end of every collection, which paused the mutator for the whole time.
+     */
+    void collected(int usedAfter) {
+        collected(usedAfter, System.nanoTime() - gcEvent.start);
+    }
 
-            gcStackPointer += REF_SIZE;
+    /**
+     * @param pause time the mutator was stopped since the collection started
+     */
+    void collected(int usedAfter, long pause) {
+        gcEvent.duration = System.nanoTime() - gcEvent.start;
+        gcEvent.pause = pause;
+        gcEvent.usedAfter = usedAfter;
+        gcEvent.heapSize = heapSize();
+
+        if (profiler != null) {
+            profiler.collected();
+        }
+        for (int i = 0; i < gcListeners.size(); i++) {
+            gcListeners.get(i).collected(gcEvent);
         }
+    }
 
-        debug("Found " + active.size() + " on stack...");
+    void visitHeap(GCPolicy.HeapVisitor visitor) {
+        gc.visitHeap(visitor);
+    }
 
-        return active;
+    /**
+     * Stops threads of the GC policy. The memory must not be used afterwards.
+     */
+    public void shutdown() {
+        gc.shutdown();
     }
 
-    public void replaceOnStack(Map<Integer, Integer> table) {
-        int gcStackPointer = 0;
-        while (gcStackPointer <= stackPointer) {
-            Pointer p = retrievePointer(stack, gcStackPointer);
-            if (p.address >= 0) {
-                // is object
-                if (p.$unsafe().marker() == MARKER) {
-                    if (table.containsKey(p.address)) {
-                        debug("replacing on stack at " + gcStackPointer + ": " + p.address + " => " + table.get(p.address));
-                        storeInt(stack, gcStackPointer, table.get(p.address));
-                    }
-                } else {
-                    // skipping not objects - integers such as return address and caller frame address
-                }
-            }
+    boolean isPointerIndexed(int obj) {
+        return (heap.getInt(obj) & BYTE_INDEXED_BIT) == 0;
+    }
 
-            gcStackPointer += WORD_SIZE;
-        }
+    /**
+     * @return size in the header of the object - number of its fields or bytes
+     */
+    int length(int obj) {
+        return heap.getInt(obj + Obj.SIZE_OFFSET);
     }
 
-    public void protect(Pointer unprotected) {
-        protectedPointers.add(unprotected);
+    /**
+     * @return size of the object in bytes including its header
+     */
+    int objectSize(int obj) {
+        int size = length(obj);
+        return HEADER_SIZE + (isPointerIndexed(obj) ? size * REF_SIZE : align(size));
     }
 
-    public void unprotect(Pointer protectedPointer) {
-        if (!(classes.contains(protectedPointer) || methodDictionaries.contains(protectedPointer))) {
-            protectedPointers.remove(protectedPointer);
-        }
+    /**
+     * @return header word of an object, written by GC policies creating objects of their own together with the size
+     * word
+     */
+    static int header(ObjectKind kind, GCState state) {
+        return ((MARKER & 0xFF) << 24)
+                | ((state.value & 0xFF) << 16)
+                | (kind == ObjectKind.BYTE_INDEXED ? BYTE_INDEXED_BIT : 0);
     }
 
-    public void replaceProtected(Map<Integer, Integer> table) {
-        for (Pointer p : protectedPointers) {
-            if (table.containsKey(p.address)) {
-                p.address = table.get(p.address);
-            }
-        }
+    /**
+     * @return the header word with another GC state
+     */
+    static int header(int header, GCState state) {
+        return (header & ~0xFF0000) | ((state.value & 0xFF) << 16);
     }
 
-    private void flip() {
-        if (firstSpace) {
-            firstSpace = false;
-            firstFreeHeapByte = space2[0];
-            clear(heap, space1[0], space1[1]);
-        } else {
-            firstSpace = true;
-            firstFreeHeapByte = space1[0];
-            clear(heap, space2[0], space2[1]);
-        }
+    /**
+     * @return GC state byte of a header word
+     */
+    static byte gcState(int header) {
+        return (byte) (header >> 16);
+    }
+
+    /**
+     * @return size rounded up to whole words
+     */
+    public static int align(int size) {
+        return (size + WORD_SIZE - 1) & -WORD_SIZE;
     }
 
     public void newFrame(int numOfLocals) {
-        debug("STACK FRAME WITH " + numOfLocals + " LOCALS AT " + stackPointer);
+        if (DEBUG) {
+            debug("STACK FRAME WITH " + numOfLocals + " LOCALS AT " + stackPointer);
+        }
 
         int caller = basePointer;
         basePointer = stackPointer;
-        // making the address negative so that caller address is not misdetected as Pointer during stack scan
-        pushInt(-caller);
-        // making the address negative so that return address is not misdetected as Pointer during stack scan
-        pushInt(-programCounter.address);
+        // raw words, not seen by the stack scan
+        pushInt(caller);
+        pushInt(programCounter);
         for (int i = 0; i < numOfLocals; i++) {
-            pushPointer(NULL);
+            pushWord(NULL.address);
         }
     }
 
-    public CodePointer discardFrame() {
-        debug("DISCARDING FRAME AT " + basePointer);
+    /**
+     * @return index of the instruction to return to or END_OF_PROGRAM
+     */
+    public int discardFrame() {
+        if (DEBUG) {
+            debug("DISCARDING FRAME AT " + basePointer);
+        }
 
         int currentBasePointer = basePointer;
-        int currentStackPointer = stackPointer;
 
-        int caller = -retrieveInt(stack, basePointer);
-        int returnAddress = -retrieveInt(stack, basePointer + WORD_SIZE);
+        int caller = stack[basePointer];
+        int returnAddress = stack[basePointer + 1];
 
         basePointer = caller;
         stackPointer = currentBasePointer;
 
-        clear(stack, currentBasePointer, currentStackPointer);
-
         if (caller == NULL.address) {
             // end of the program
-            return null;
+            return END_OF_PROGRAM;
         }
 
-        return new CodePointer(returnAddress, this);
+        return returnAddress;
     }
 
-    public void pushInt(int num) {
-        if (this.stackPointer + WORD_SIZE <= stack.length) {
-            debug("STACK INT AT " + stackPointer + " VAL " + num);
-            storeInt(stack, stackPointer, num);
-            this.stackPointer += WORD_SIZE;
-        } else {
+    // Raw stack access used by the interpreter. The stack is an array of words, stack pointer and base pointer are
+    // indexes into it. Popped slots are not cleared, the stack scan never looks above the stack pointer.
+
+    /**
+     * Pushes a value - a pointer, a tagged small integer or NULL.
+     */
+    public void pushWord(int word) {
+        if (stackPointer == stack.length) {
             throw new RuntimeException("Stack overflow!");
         }
+
+        references[stackPointer] = true;
+        stack[stackPointer++] = word;
     }
 
-    public void pushPointer(Pointer object) {
-        if (this.stackPointer + WORD_SIZE <= stack.length) {
-            debug("STACK * AT " + stackPointer + " VAL " + object.address);
-            storePointer(stack, stackPointer, object);
-            this.stackPointer += WORD_SIZE;
-        } else {
-            throw new RuntimeException("Stack overflow!");
+    public int popWord() {
+        if (stackPointer == 0) {
+            throw new RuntimeException("Nothing to pop from stack!");
         }
+
+        return stack[--stackPointer];
     }
 
-    public int popInt() {
-        if (this.stackPointer - WORD_SIZE >= 0) {
-            this.stackPointer -= WORD_SIZE;
-            debug("STACKPOP INT AT " + stackPointer);
-            int i = retrieveInt(stack, this.stackPointer);
-            clear(stack, this.stackPointer, WORD_SIZE);
-            return i;
-        } else {
+    public int topWord() {
+        if (stackPointer == 0) {
             throw new RuntimeException("Nothing to pop from stack!");
         }
+
+        return stack[stackPointer - 1];
     }
 
-    public Pointer popPointer() {
-        if (this.stackPointer - WORD_SIZE >= 0) {
-            this.stackPointer -= WORD_SIZE;
-            debug("STACKPOP * AT " + stackPointer);
-            Pointer p = retrievePointer(stack, this.stackPointer);
-            clear(stack, this.stackPointer, WORD_SIZE);
-            return p;
-        } else {
+    /**
+     * Replaces the word on top of the stack, saves popping and pushing back a result of an operation.
+     */
+    public void topWord(int word) {
+        if (stackPointer == 0) {
             throw new RuntimeException("Nothing to pop from stack!");
         }
+
+        references[stackPointer - 1] = true;
+        stack[stackPointer - 1] = word;
     }
 
-    public void arg(int index, Pointer val) {
-        int address = basePointer - WORD_SIZE - (index * WORD_SIZE);
+    public void popWords(int count) {
+        if (stackPointer < count) {
+            throw new RuntimeException("Nothing to pop from stack!");
+        }
 
-        debug("STACK ARGUMENT AT " + index + " ADDRESS " + address + " VAL " + val.address);
+        stackPointer -= count;
+    }
 
-        storePointer(stack, address, val);
+    /**
+     * Direct access to the stack for primitives. GC rewrites moved objects in this array, so words read from it are
+     * valid even after an allocation.
+     */
+    public int[] stack() {
+        return stack;
     }
 
-    public Pointer arg(int index) {
-        int address = basePointer - WORD_SIZE - (index * WORD_SIZE);
+    public int stackPointer() {
+        return stackPointer;
+    }
 
-        debug("STACKPOP ARGUMENT AT " + index + " ADDRESS " + address);
+    public int argWord(int index) {
+        return stack[basePointer - 1 - index];
+    }
 
-        Pointer p = retrievePointer(stack, address);
-        return p;
+    public int localWord(int index) {
+        // caller + return address + local at position
+        return stack[basePointer + 2 + index];
     }
 
-    public void local(int index, Pointer val) {
+    public void localWord(int index, int word) {
         // caller + return address + local at position
-        int address = basePointer + WORD_SIZE + WORD_SIZE + (index * WORD_SIZE);
+        references[basePointer + 2 + index] = true;
+        stack[basePointer + 2 + index] = word;
+    }
 
-        debug("STACK LOCAL AT " + index + " ADDRESS " + address + " VAL " + val.address);
+    /**
+     * Pops the top of the stack into the local, raw words stay raw.
+     */
+    public void storeLocal(int index) {
+        int slot = basePointer + 2 + index;
+        stack[slot] = popWord();
+        references[slot] = references[stackPointer];
+    }
 
-        storePointer(stack, address, val);
+    /**
+     * Pushes the local, raw words stay raw.
+     */
+    public void loadLocal(int index) {
+        int slot = basePointer + 2 + index;
+        pushWord(stack[slot]);
+        references[stackPointer - 1] = references[slot];
     }
 
-    public Pointer local(int index) {
-        // caller + return address + local at position
-        int address = basePointer + WORD_SIZE + WORD_SIZE + (index * WORD_SIZE);
+    /**
+     * Pushes the argument, raw words stay raw.
+     */
+    public void loadArg(int index) {
+        int slot = basePointer - 1 - index;
+        pushWord(stack[slot]);
+        references[stackPointer - 1] = references[slot];
+    }
 
-        debug("STACKPOP LOCAL AT " + index + " ADDRESS " + address);
+    /**
+     * Pushes a raw integer, such as a field index, GC never takes it for a pointer.
+     */
+    public void pushInt(int num) {
+        pushWord(num);
+        references[stackPointer - 1] = false;
+    }
 
-        Pointer p = retrievePointer(stack, address);
-        return p;
+    public void pushPointer(Pointer object) {
+        pushWord(object.address);
+    }
+
+    public int popInt() {
+        return popWord();
+    }
+
+    public Pointer popPointer() {
+        return new Pointer(popWord(), this);
+    }
+
+    public void arg(int index, Pointer val) {
+        if (DEBUG) {
+            debug("STACK ARGUMENT AT " + index + " VAL " + val.address);
+        }
+
+        references[basePointer - 1 - index] = true;
+        stack[basePointer - 1 - index] = val.address;
+    }
+
+    public Pointer arg(int index) {
+        return new Pointer(argWord(index), this);
+    }
+
+    public void local(int index, Pointer val) {
+        if (DEBUG) {
+            debug("STACK LOCAL AT " + index + " VAL " + val.address);
+        }
+
+        localWord(index, val.address);
+    }
+
+    public Pointer local(int index) {
+        return new Pointer(localWord(index), this);
     }
 
     public CodePointer storeCode(byte[] bytecode) {
@@ -420,9 +767,91 @@ public class MM {
             throw new RuntimeException("Not enough memory for code!");
         }
 
+        decode(p.address, firstFreeCodeByte);
+        codeStarts.add(p.address);
+
         return p;
     }
 
+    /**
+     * Translates bytecode between the two code addresses into the instruction stream. Arguments are decoded into ints
+     * and relative jump offsets are resolved to absolute instruction indexes.
+     */
+    private void decode(int from, int to) {
+        // first pass - instruction indexes of all instructions so that forward jumps can be resolved
+        int address = from;
+        int index = firstFreeInstruction;
+        while (address < to) {
+            Bytecode.BytecodeInstruction instruction = Bytecode.instruction(code[address]);
+            if (instruction == null) {
+                throw new RuntimeException("Unknown instruction.");
+            }
+
+            instructionIndexes[address] = index;
+            index += 1 + instruction.numOfArguments;
+            address += INSTR_SIZE + (instruction.numOfArguments * WORD_SIZE);
+        }
+
+        // second pass - the instruction stream itself
+        address = from;
+        while (address < to) {
+            Bytecode.BytecodeInstruction instruction = Bytecode.instruction(code[address]);
+            int next = address + INSTR_SIZE + (instruction.numOfArguments * WORD_SIZE);
+
+            instructions[firstFreeInstruction++] = instruction.code;
+            for (int i = 0; i < instruction.numOfArguments; i++) {
+                int argument = retrieveInt(code, address + INSTR_SIZE + (i * WORD_SIZE));
+                if (instruction.jump) {
+                    argument = instructionIndex(new CodePointer(next + argument, this));
+                }
+                instructions[firstFreeInstruction++] = argument;
+            }
+
+            address = next;
+        }
+    }
+
+    /**
+     * @return index of the decoded instruction stored at the code address
+     */
+    public int instructionIndex(CodePointer p) {
+        if (p.address < 0 || p.address >= firstFreeCodeByte || instructionIndexes[p.address] < 0) {
+            throw new RuntimeException("Invalid code address " + p.address + "!");
+        }
+
+        return instructionIndexes[p.address];
+    }
+
+    public int[] instructions() {
+        return instructions;
+    }
+
+    /**
+     * @return code address of the decoded instruction, -1 if there is no such instruction
+     */
+    public int codeAddress(int instructionIndex) {
+        for (int address = 0; address < firstFreeCodeByte; address++) {
+            if (instructionIndexes[address] == instructionIndex) {
+                return address;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return address of the first instruction of the code stored together with the instruction at the address
+     */
+    public int codeStart(int address) {
+        for (int i = codeStarts.size() - 1; i >= 0; i--) {
+            if (codeStarts.get(i) <= address) {
+                return codeStarts.get(i);
+            }
+        }
+
+        return -1;
+    }
+
     public int addMethod(Method m) {
         methods.add(m);
         return methods.indexOf(m);
@@ -432,44 +861,48 @@ public class MM {
         return methods.get(index);
     }
 
-    public void addClass(Pointer root) {
-        classes.add(root);
-        protectedPointers.add(root);
+    public List<Method> getMethods() {
+        return methods;
     }
 
-    public List<Pointer> getClasses() {
-        return classes;
+    /**
+     * @param clazz class allocated in the metaspace
+     */
+    public void addClass(Pointer clazz) {
+        if (!inMetaspace(clazz.address)) {
+            throw new RuntimeException("Class is not in the metaspace!");
+        }
+        classes.add(clazz);
     }
 
-    public void addMethodDictionary(Pointer root) {
-        methodDictionaries.add(root);
-        protectedPointers.add(root);
+    public List<Pointer> getClasses() {
+        return classes;
     }
 
-    public void setPC(CodePointer pc) {
-        programCounter = pc;
+    public List<Pointer> getMethodDictionaries() {
+        return methodDictionaries;
     }
 
-    public CodePointer getPC() {
-        return programCounter;
+    /**
+     * @param dictionary method dictionary allocated in the metaspace
+     */
+    public void addMethodDictionary(Pointer dictionary) {
+        if (!inMetaspace(dictionary.address)) {
+            throw new RuntimeException("Method dictionary is not in the metaspace!");
+        }
+        methodDictionaries.add(dictionary);
     }
 
-    public byte getByteFromBC() {
-        byte b = code[programCounter.address];
-        pcInstr();
-        return b;
+    public int methodsVersion() {
+        return methodsVersion;
     }
 
-    public int getIntFromBC() {
-        int i = retrieveInt(code, programCounter.address);
-        pcWord();
-        return i;
+    public void setPC(int pc) {
+        programCounter = pc;
     }
 
-    public Pointer getPointerFromBC() {
-        Pointer p = retrievePointer(code, programCounter.address);
-        pcWord();
-        return p;
+    public int getPC() {
+        return programCounter;
     }
 
     public int addConstant(Object constant) {
@@ -486,49 +919,69 @@ public class MM {
         return constantPool.indexOf(o);
     }
 
-    public int pointerIndexedObjectSize(int size) {
-        return HEADER_SIZE + (size * REF_SIZE);
+    /**
+     * @return symbol of the interned name
+     */
+    public int symbol(String name) {
+        Integer symbol = symbols.get(name);
+        if (symbol == null) {
+            symbol = symbolNames.size();
+            symbolNames.add(name);
+            symbols.put(name, symbol);
+        }
+
+        return symbol;
     }
 
-    public int byteIndexedObjectSize(int size) {
-        return HEADER_SIZE + size;
+    public String symbolName(int symbol) {
+        return symbolNames.get(symbol);
     }
 
-    private void clear(byte[] what, int from, int size) {
-        for (int i = from; (i < (from + size)) && ((from + size) <= what.length); i++) {
-            what[i] = FREE_MARKER;
+    /**
+     * @return symbol of the string constant, interned on the first use
+     */
+    public int constantSymbol(int index) {
+        if (index >= constantSymbols.length) {
+            constantSymbols = Arrays.copyOf(constantSymbols, Math.max(index + 1, constantPool.size()));
         }
-    }
 
-    private void storePointer(byte[] where, int address, Pointer p) {
-        if (p != null) {
-            storeInt(where, address, p.address);
+        if (constantSymbols[index] == 0) {
+            constantSymbols[index] = symbol((String) constant(index)) + 1;
         }
-    }
 
-    private Pointer retrievePointer(byte[] from, int address) {
-        return new Pointer(retrieveInt(from, address), this);
+        return constantSymbols[index] - 1;
     }
 
-    private void storeInt(byte[] where, int address, int value) {
-        byte[] bytes = Util.int2bytes(value);
-        System.arraycopy(bytes, 0, where, address, 4);
+    public int pointerIndexedObjectSize(int size) {
+        checkObjectSize(size);
+        checkObjectBytes(HEADER_SIZE + (long) size * REF_SIZE);
+        return HEADER_SIZE + (size * REF_SIZE);
     }
 
-    private int retrieveInt(byte[] from, int address) {
-        return Util.bytes2int(Arrays.copyOfRange(from, address, address + 4));
+    public int byteIndexedObjectSize(int size) {
+        checkObjectSize(size);
+        checkObjectBytes(HEADER_SIZE + (long) size + WORD_SIZE - 1);
+        return HEADER_SIZE + align(size);
     }
 
-    private void pc(int number) {
-        programCounter = programCounter.arith(number);
+    private static void checkObjectSize(int size) {
+        if (size < 0 || size > MAX_OBJECT_SIZE) {
+            throw new RuntimeException("Object too big!");
+        }
     }
 
-    private void pcInstr() {
-        pc(INSTR_SIZE);
+    private static void checkObjectBytes(long bytes) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new RuntimeException("Object too big!");
+        }
     }
 
-    private void pcWord() {
-        pc(WORD_SIZE);
+    // big-endian like Util.bytes2int, without a temporary array
+    private int retrieveInt(byte[] from, int address) {
+        return (from[address] << 24)
+                + ((from[address + 1] & 0xFF) << 16)
+                + ((from[address + 2] & 0xFF) << 8)
+                + (from[address + 3] & 0xFF);
     }
 
     private int frameSize(int args, int locals) {
@@ -542,12 +995,14 @@ public class MM {
         out.println();
         out.println("# MEMORY DUMP");
         out.println("HEAP");
-        dumpByteArray(heap, numOfBytesOnRow, out);
+        byte[] heapBytes = new byte[heapEnd];
+        heap.get(0, heapBytes, heapBytes.length);
+        dumpByteArray(heapBytes, numOfBytesOnRow, out);
 
         out.println();
         out.println();
         out.println("STACK");
-        dumpByteArray(stack, numOfBytesOnRow, out);
+        dumpWordArray(stack, stackPointer, out);
 
         out.println();
         out.println();
@@ -590,6 +1045,12 @@ public class MM {
         }
     }
 
+    private void dumpWordArray(int[] arr, int length, PrintWriter out) {
+        for (int i = 0; i < length; i++) {
+            out.println(String.format("%04d: %08X    %d", i, arr[i], arr[i]));
+        }
+    }
+
     private void dumpBytecode(byte[] arr, PrintWriter out) {
         int emptyCount = 0;
 
@@ -617,29 +1078,12 @@ public class MM {
         out.println();
     }
 
-    public void heapObjectsDump() {
-        Pointer p = new Pointer(0, this);
-        while (p.address <= firstFreeHeapByte) {
-//            System.out.println("@" + p.address + ": " + p.$().kind() + " " + p.$().clazz().$c().name() + " #" + p.$().size());
-            int size = 0;
-            switch (p.$().kind()) {
-                case POINTER_INDEXED:
-                    size = pointerIndexedObjectSize(p.$().size());
-                    break;
-                case BYTE_INDEXED:
-                    size = byteIndexedObjectSize(p.$().size());
-                    break;
-            }
-            p = new Pointer(p.address + size, this);
-        }
-    }
-
     public class Obj {
 
         protected Pointer pointer;
-        protected static final int KIND_OFFSET = 1;
-        protected static final int GC_STATE_OFFSET = KIND_OFFSET + 1;
-        protected static final int SIZE_OFFSET = GC_STATE_OFFSET + 1;
+        // byte of the header word
+        protected static final int GC_STATE_OFFSET = 1;
+        protected static final int SIZE_OFFSET = WORD_SIZE;
         protected static final int CLASS_OFFSET = SIZE_OFFSET + WORD_SIZE;
         protected static final int DATA_OFFSET = CLASS_OFFSET + REF_SIZE;
 
@@ -648,43 +1092,51 @@ public class MM {
         }
 
         public byte marker() {
-            return heap[pointer.address];
+            return heap.get(pointer.address);
         }
 
         public void marker(byte marker) {
-            heap[pointer.address] = marker;
+            heap.put(pointer.address, marker);
         }
 
         public ObjectKind kind() {
-            return ObjectKind.fromValue(heap[pointer.address + KIND_OFFSET]);
+            return isPointerIndexed(pointer.address) ? ObjectKind.POINTER_INDEXED : ObjectKind.BYTE_INDEXED;
         }
 
         public void kind(ObjectKind kind) {
-            heap[pointer.address + KIND_OFFSET] = kind.value;
+            int header = heap.getInt(pointer.address) & ~BYTE_INDEXED_BIT;
+            if (kind == ObjectKind.BYTE_INDEXED) {
+                header |= BYTE_INDEXED_BIT;
+            }
+            heap.putInt(pointer.address, header);
         }
 
         public GCState gcState() {
-            return GCState.fromValue(heap[pointer.address + GC_STATE_OFFSET]);
+            return GCState.fromValue(heap.get(pointer.address + GC_STATE_OFFSET));
         }
 
         public void gcState(GCState state) {
-            heap[pointer.address + GC_STATE_OFFSET] = state.value;
+            heap.put(pointer.address + GC_STATE_OFFSET, state.value);
         }
 
         public int size() {
-            return retrieveInt(heap, pointer.address + SIZE_OFFSET);
+            return length(pointer.address);
         }
 
         public void size(int size) {
-            storeInt(heap, pointer.address + SIZE_OFFSET, size);
+            checkObjectSize(size);
+            heap.putInt(pointer.address + SIZE_OFFSET, size);
         }
 
         public Pointer clazz() {
-            return retrievePointer(heap, pointer.address + CLASS_OFFSET);
+            return new Pointer(gc.readBarrier(heap.getInt(pointer.address + CLASS_OFFSET)), MM.this);
         }
 
         public void clazz(Pointer p) {
-            storePointer(heap, pointer.address + CLASS_OFFSET, p);
+            if (p != null) {
+                writeBarrier(pointer.address, p.address);
+                heap.putInt(pointer.address + CLASS_OFFSET, p.address);
+            }
         }
     }
 
@@ -696,23 +1148,26 @@ public class MM {
 
         public Pointer field(int index) {
             int address = pointer.address + DATA_OFFSET + (index * REF_SIZE);
-            return retrievePointer(heap, address);
+            return new Pointer(gc.readBarrier(heap.getInt(address)), MM.this);
         }
 
         public int fieldInt(int index) {
             int address = pointer.address + DATA_OFFSET + (index * REF_SIZE);
-            int i = retrieveInt(heap, address);
+            int i = heap.getInt(address);
             return i;
         }
 
         public void field(int index, Pointer obj) {
             int address = pointer.address + DATA_OFFSET + (index * REF_SIZE);
-            storePointer(heap, address, obj);
+            if (obj != null) {
+                writeBarrier(pointer.address, obj.address);
+                heap.putInt(address, obj.address);
+            }
         }
 
         public void fieldInt(int index, int i) {
             int address = pointer.address + DATA_OFFSET + (index * REF_SIZE);
-            storeInt(heap, address, i);
+            heap.putInt(address, i);
         }
     }
 
@@ -723,11 +1178,17 @@ public class MM {
         }
 
         public byte[] bytes() {
-            return Arrays.copyOfRange(heap, pointer.address + DATA_OFFSET, pointer.address + DATA_OFFSET + size());
+            byte[] bytes = new byte[size()];
+            heap.get(pointer.address + DATA_OFFSET, bytes, bytes.length);
+            return bytes;
         }
 
         public void bytes(byte[] bytes) {
-            System.arraycopy(bytes, 0, heap, pointer.address + DATA_OFFSET, size());
+            heap.put(pointer.address + DATA_OFFSET, bytes, size());
+        }
+
+        public byte byteAt(int index) {
+            return heap.get(pointer.address + DATA_OFFSET + index);
         }
     }
 
@@ -737,13 +1198,15 @@ public class MM {
             super(startAddress);
         }
 
+        // integer fields of a class are stored as tagged small integers so that GC does not take them for pointers
+
         public void name(String name) {
             int index = addConstant(name);
-            fieldInt(0, index);
+            fieldInt(0, tagSmallInteger(index));
         }
 
         public String name() {
-            return (String) constant(fieldInt(0));
+            return (String) constant(untagSmallInteger(fieldInt(0)));
         }
 
         public void superclass(Pointer superclass) {
@@ -763,20 +1226,29 @@ public class MM {
         }
 
         public void objectSize(int objectSize) {
-            fieldInt(3, objectSize);
+            fieldInt(3, tagSmallInteger(objectSize));
         }
 
         public int objectSize() {
-            return fieldInt(3);
+            return untagSmallInteger(fieldInt(3));
         }
 
         public void methods(Pointer methods) {
             field(4, methods);
+            methodsVersion++;
         }
 
         public Pointer methods() {
             return field(4);
         }
+
+        /**
+         * Class names are unique, so index of the name in the constant pool identifies the class. The class itself lives
+         * in the metaspace, which GC never moves, so its address does not change either, the ID is a small index.
+         */
+        public int id() {
+            return untagSmallInteger(fieldInt(0));
+        }
     }
 
 }
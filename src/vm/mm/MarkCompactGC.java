@@ -0,0 +1,259 @@
+package vm.mm;
+
+import java.util.Arrays;
+
+/**
+ * Sliding mark-compact collector using the whole heap. Live objects are marked in a bitmap and slid towards the start
+ * of the heap, keeping their allocation order. As in the Compressor, forwarding addresses are not stored in the objects
+ * but computed from the mark bitmap and a table of live bytes preceding every block of the heap, so the object header
+ * needs no spare word and the collector needs no memory proportional to the number of objects.
+ * <p/>
+ * Pauses are longer than the ones of copying collectors, the whole heap is walked three times - marking, updating the
+ * pointers and moving the objects.
+ * <p/>
+ * The mark stack has a fixed size, so marking allocates no Java memory. An object marked while the stack is full is
+ * not pushed, its fields are marked by scanning all marked objects again once the stack is empty.
+ * <p/>
+ * Survivors end up at the start of the heap, right after the metaspace, so with heap sizing the heap is resized right
+ * after a collection.
+ */
+public class MarkCompactGC implements GCPolicy, GCPolicy.RootVisitor {
+
+    // bytes of the heap covered by a single word of the mark bitmap, objects start at word boundaries only
+    private static final int BLOCK_SIZE = 64 * MM.WORD_SIZE;
+
+    private MM mm;
+
+    // null for a heap of fixed size
+    private HeapSizing sizing;
+
+    // first byte after the metaspace
+    private int heapStart;
+    private int heapSize;
+    private int firstFreeHeapByte;
+
+    // bit for the first word of every live object, from the start of the heap
+    private long[] marks;
+    // new address of the first live object starting in the block
+    private int[] offsets;
+
+    private static final int MARK_STACK_SIZE = 1024;
+
+    // marked objects whose fields were not marked yet
+    private int[] markStack = new int[MARK_STACK_SIZE];
+    private int markStackPointer = 0;
+    // set when a marked object was not pushed
+    private boolean markStackOverflow = false;
+
+    // roots are visited twice, to be marked and to be updated
+    private boolean marking;
+
+    public MarkCompactGC() {
+    }
+
+    public MarkCompactGC(HeapSizing sizing) {
+        this.sizing = sizing;
+    }
+
+    @Override
+    public void init(MM mm, int start, int heapSize) {
+        this.mm = mm;
+        this.heapStart = start;
+        firstFreeHeapByte = start;
+        layout(heapSize);
+    }
+
+    private void layout(int heapSize) {
+        this.heapSize = heapSize;
+
+        marks = new long[(heapSize + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        offsets = new int[marks.length];
+    }
+
+    @Override
+    public int alloc(int size) {
+        if (firstFreeHeapByte + size > heapStart + heapSize) {
+            if (sizing != null) {
+                sizing.collectionStarted();
+                collect();
+                // the pause is recorded first, resizing decides by it
+                sizing.collectionFinished();
+                resize(size);
+            } else {
+                collect();
+            }
+
+            if (firstFreeHeapByte + size > heapStart + heapSize) {
+                throw new RuntimeException("Not enough memory!");
+            }
+        }
+
+        int address = firstFreeHeapByte;
+        firstFreeHeapByte += size;
+        return address;
+    }
+
+    private void resize(int request) {
+        // survivors are never cut off
+        int live = firstFreeHeapByte - heapStart;
+        int newHeapSize = Math.max(sizing.heapSize(heapSize, live + request), live);
+        if (newHeapSize != heapSize) {
+            mm.resizeHeap(newHeapSize);
+            layout(newHeapSize);
+        }
+    }
+
+    @Override
+    public void writeBarrier(int obj, int value) {
+        // the whole heap is collected at once
+    }
+
+    @Override
+    public int readBarrier(int word) {
+        return word;
+    }
+
+    @Override
+    public void collect() {
+        GCEvent event = mm.collectionStarted("Mark-Compact", firstFreeHeapByte - heapStart);
+
+        // marking
+        marking = true;
+        event.roots = mm.visitRoots(this);
+        drainMarkStack();
+        while (markStackOverflow) {
+            markStackOverflow = false;
+            for (int block = 0; block < marks.length; block++) {
+                for (long bits = marks[block]; bits != 0; bits &= bits - 1) {
+                    markFields(heapStart + block * BLOCK_SIZE + Long.numberOfTrailingZeros(bits) * MM.WORD_SIZE);
+                    drainMarkStack();
+                }
+            }
+        }
+
+        // computing new addresses of blocks
+        int live = heapStart;
+        for (int block = 0; block < marks.length; block++) {
+            offsets[block] = live;
+            for (long bits = marks[block]; bits != 0; bits &= bits - 1) {
+                live += mm.objectSize(heapStart + block * BLOCK_SIZE + Long.numberOfTrailingZeros(bits) * MM.WORD_SIZE);
+                event.survivors++;
+            }
+        }
+
+        // updating pointers, objects are still at their old addresses
+        marking = false;
+        mm.visitRoots(this);
+        for (int block = 0; block < marks.length; block++) {
+            for (long bits = marks[block]; bits != 0; bits &= bits - 1) {
+                int obj = heapStart + block * BLOCK_SIZE + Long.numberOfTrailingZeros(bits) * MM.WORD_SIZE;
+                mm.heapInt(obj + MM.Obj.CLASS_OFFSET, forward(mm.heapInt(obj + MM.Obj.CLASS_OFFSET)));
+                if (mm.isPointerIndexed(obj)) {
+                    int size = mm.length(obj);
+                    for (int i = 0; i < size; i++) {
+                        int address = obj + MM.Obj.DATA_OFFSET + (i * MM.REF_SIZE);
+                        mm.heapInt(address, forward(mm.heapInt(address)));
+                    }
+                }
+            }
+        }
+
+        // sliding, an object never overwrites the ones after it
+        int to = heapStart;
+        for (int block = 0; block < marks.length; block++) {
+            for (long bits = marks[block]; bits != 0; bits &= bits - 1) {
+                int obj = heapStart + block * BLOCK_SIZE + Long.numberOfTrailingZeros(bits) * MM.WORD_SIZE;
+                int size = mm.objectSize(obj);
+                if (obj != to) {
+                    mm.copyHeap(obj, to, size);
+                    event.bytesCopied += size;
+                }
+                to += size;
+            }
+        }
+
+        mm.clearHeap(live, firstFreeHeapByte - live);
+        firstFreeHeapByte = live;
+        Arrays.fill(marks, 0);
+
+        mm.collected(firstFreeHeapByte - heapStart);
+    }
+
+    @Override
+    public void visitHeap(HeapVisitor visitor) {
+        visitor.range(heapStart, firstFreeHeapByte);
+    }
+
+    @Override
+    public void shutdown() {
+        // no threads of its own
+    }
+
+    @Override
+    public int root(int word) {
+        if (marking) {
+            mark(word);
+            return word;
+        }
+
+        return forward(word);
+    }
+
+    private void mark(int word) {
+        // NULL, tagged small integers and method indexes are negative, classes are in the metaspace
+        if (word < heapStart || word >= firstFreeHeapByte || word % MM.WORD_SIZE != 0 || mm.heapByte(word) != MM.MARKER
+                || isMarked(word)) {
+            return;
+        }
+
+        int offset = word - heapStart;
+        marks[offset / BLOCK_SIZE] |= 1L << (offset % BLOCK_SIZE / MM.WORD_SIZE);
+
+        if (markStackPointer == markStack.length) {
+            markStackOverflow = true;
+        } else {
+            markStack[markStackPointer++] = word;
+        }
+    }
+
+    private void drainMarkStack() {
+        while (markStackPointer > 0) {
+            markFields(markStack[--markStackPointer]);
+        }
+    }
+
+    private void markFields(int obj) {
+        mark(mm.heapInt(obj + MM.Obj.CLASS_OFFSET));
+        if (mm.isPointerIndexed(obj)) {
+            int size = mm.length(obj);
+            for (int i = 0; i < size; i++) {
+                mark(mm.heapInt(obj + MM.Obj.DATA_OFFSET + (i * MM.REF_SIZE)));
+            }
+        }
+    }
+
+    private boolean isMarked(int address) {
+        int offset = address - heapStart;
+        return (marks[offset / BLOCK_SIZE] & (1L << (offset % BLOCK_SIZE / MM.WORD_SIZE))) != 0;
+    }
+
+    /**
+     * @return new address of a live object - new address of its block plus sizes of live objects before it in the
+     * block, the word itself if it is not a live object
+     */
+    private int forward(int word) {
+        if (word < heapStart || word >= firstFreeHeapByte || !isMarked(word)) {
+            return word;
+        }
+
+        int offset = word - heapStart;
+        int block = offset / BLOCK_SIZE;
+        int address = offsets[block];
+        for (long bits = marks[block] & ((1L << (offset % BLOCK_SIZE / MM.WORD_SIZE)) - 1); bits != 0; bits &= bits - 1) {
+            address += mm.objectSize(heapStart + block * BLOCK_SIZE + Long.numberOfTrailingZeros(bits) * MM.WORD_SIZE);
+        }
+
+        return address;
+    }
+
+}
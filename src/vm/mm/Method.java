@@ -1,16 +1,38 @@
 package vm.mm;
 
+import vm.ClausVM;
+import vm.jit.CompiledMethod;
+
 public class Method {
 
     private String selector;
 
+    private int selectorSymbol;
+
     private CodePointer bytecode;
 
+    private int entryPoint;
+
     private int numOfLocals;
 
-    public Method(String selector, CodePointer bytecode, int numOfLocals) {
+    // profile for the JIT
+    private int invocations;
+
+    private int backedges;
+
+    private boolean compilable = true;
+
+    private CompiledMethod compiled;
+
+    private CompiledMethod closure;
+
+    private ClausVM.PrimitiveSyscall intrinsic;
+
+    public Method(String selector, int selectorSymbol, CodePointer bytecode, int entryPoint, int numOfLocals) {
         this.selector = selector;
+        this.selectorSymbol = selectorSymbol;
         this.bytecode = bytecode;
+        this.entryPoint = entryPoint;
         this.numOfLocals = numOfLocals;
     }
 
@@ -18,12 +40,80 @@ public class Method {
         return selector;
     }
 
+    public int selectorSymbol() {
+        return selectorSymbol;
+    }
+
     public CodePointer bytecodePointer() {
         return bytecode;
     }
 
+    /**
+     * @return index of the first instruction in the decoded instruction stream
+     */
+    public int entryPoint() {
+        return entryPoint;
+    }
+
     public int numOfLocals() {
         return numOfLocals;
     }
 
+    public void countInvocation() {
+        invocations++;
+    }
+
+    public int invocations() {
+        return invocations;
+    }
+
+    public void countBackedge() {
+        backedges++;
+    }
+
+    public int backedges() {
+        return backedges;
+    }
+
+    public boolean compilable() {
+        return compilable;
+    }
+
+    public void compilable(boolean compilable) {
+        this.compilable = compilable;
+    }
+
+    /**
+     * @return compiled version of the method or null if it is interpreted
+     */
+    public CompiledMethod compiled() {
+        return compiled;
+    }
+
+    public void compiled(CompiledMethod compiled) {
+        this.compiled = compiled;
+    }
+
+    /**
+     * @return closure-compiled version of the method or null if it was not compiled to closures
+     */
+    public CompiledMethod closure() {
+        return closure;
+    }
+
+    public void closure(CompiledMethod closure) {
+        this.closure = closure;
+    }
+
+    /**
+     * @return primitive run instead of the method or null if the method is not an intrinsic
+     */
+    public ClausVM.PrimitiveSyscall intrinsic() {
+        return intrinsic;
+    }
+
+    public void intrinsic(ClausVM.PrimitiveSyscall intrinsic) {
+        this.intrinsic = intrinsic;
+    }
+
 }
@@ -0,0 +1,477 @@
+package vm.mm;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Semispace copying collector evacuating the live objects by several threads. The calling thread copies the roots and
+ * then works together with GC worker threads, which are parked between collections.
+ * <p/>
+ * Every worker has a deque of copied objects whose fields were not forwarded yet, a Chase-Lev deque: the owner pushes
+ * and pops at the bottom without locks, thieves take from the top by a CAS. A worker takes objects from its own deque
+ * and steals from the other deques when it is empty, the collection ends when all workers are idle. Every object is
+ * pushed once at most, so a deque as long as the number of objects fitting into from-space never wraps or grows and a
+ * collection allocates no Java memory. A worker copies
+ * objects into its own buffer of to-space (PLAB) taken from the shared to-space top by a CAS, an unused rest of a buffer
+ * is filled by a garbage byte-indexed object so that the heap can still be walked object by object.
+ * <p/>
+ * An object is claimed by a CAS of its header word setting the GC state to BUSY. The winner copies the object, writes
+ * the new address over the class pointer and then sets the state to COPIED by a volatile write. Workers finding an
+ * object BUSY wait for it to be COPIED, spinning shortly and then parking, so that on few cores they do not take the
+ * time of the worker they wait for. Idle workers wait for work the same way.
+ * <p/>
+ * Worker threads live until shutdown.
+ */
+public class ParallelCopyingGC implements GCPolicy {
+
+    // bytes of to-space taken by a worker at once, less for small heaps
+    public static final int PLAB_SIZE = 4096;
+
+    // rounds of waiting spent spinning and yielding before a waiting worker parks
+    private static final int SPINS = 64;
+    private static final int YIELDS = 16;
+    private static final long PARK_NANOS = 50 * 1000;
+
+    private MM mm;
+
+    boolean firstSpace;
+    private int[] space1;
+    private int[] space2;
+    private int firstFreeHeapByte;
+
+    private Worker[] workers;
+    private Thread[] threads;
+    private volatile boolean stopped = false;
+    // incremented to start a collection, worker threads count the collections they took part in
+    private volatile int collections = 0;
+    // worker threads done with the running collection
+    private AtomicInteger finished = new AtomicInteger();
+    // roots are copied by the calling thread, their fields are forwarded by all workers
+    private RootVisitor roots;
+
+    private int fromStart;
+    private int fromEnd;
+    private int toEnd;
+    // unused rests of buffers take at most an eighth of the copied bytes
+    private int plabSize;
+    private AtomicInteger toTop = new AtomicInteger();
+    private AtomicInteger idle = new AtomicInteger();
+    private volatile RuntimeException failure;
+
+    /**
+     * @param threads number of threads copying objects, including the one which triggers the collection
+     */
+    public ParallelCopyingGC(int threads) {
+        workers = new Worker[threads];
+    }
+
+    @Override
+    public void init(MM mm, int start, int heapSize) {
+        this.mm = mm;
+
+        int half = heapSize / 2 / MM.WORD_SIZE * MM.WORD_SIZE;
+        space1 = new int[]{start, start + half};
+        space2 = new int[]{start + half, start + 2 * half};
+        firstSpace = true;
+        firstFreeHeapByte = space1[0];
+
+        // objects of from-space, each of them is pushed once at most
+        int maxObjects = half / MM.HEADER_SIZE;
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i, maxObjects);
+        }
+        roots = new RootVisitor() {
+            @Override
+            public int root(int word) {
+                return forward(workers[0], word);
+            }
+        };
+        threads = new Thread[workers.length - 1];
+        for (int i = 1; i < workers.length; i++) {
+            final Worker worker = workers[i];
+            threads[i - 1] = new Thread("GC worker " + i) {
+                @Override
+                public void run() {
+                    int seen = 0;
+                    while (true) {
+                        while (collections == seen && !stopped) {
+                            LockSupport.park(this);
+                        }
+                        if (stopped) {
+                            return;
+                        }
+                        seen++;
+                        work(worker);
+                        finished.incrementAndGet();
+                    }
+                }
+            };
+            threads[i - 1].setDaemon(true);
+            threads[i - 1].start();
+        }
+    }
+
+    @Override
+    public int alloc(int size) {
+        int max = firstSpace ? space1[1] : space2[1];
+        if (firstFreeHeapByte + size > max) {
+            collect();
+
+            max = firstSpace ? space1[1] : space2[1];
+            if (firstFreeHeapByte + size > max) {
+                throw new RuntimeException("Not enough memory!");
+            }
+        }
+
+        int address = firstFreeHeapByte;
+        firstFreeHeapByte += size;
+        return address;
+    }
+
+    @Override
+    public void writeBarrier(int obj, int value) {
+        // all objects are copied by every collection
+    }
+
+    @Override
+    public int readBarrier(int word) {
+        return word;
+    }
+
+    @Override
+    public void collect() {
+        if (stopped) {
+            throw new RuntimeException("GC is shut down!");
+        }
+
+        int[] from = firstSpace ? space1 : space2;
+        int[] to = firstSpace ? space2 : space1;
+        GCEvent event = mm.collectionStarted("Parallel", firstFreeHeapByte - from[0]);
+
+        fromStart = from[0];
+        fromEnd = firstFreeHeapByte;
+        toEnd = to[1];
+        plabSize = MM.align(Math.min(PLAB_SIZE, (fromEnd - fromStart) / (8 * workers.length)));
+        toTop.set(to[0]);
+        idle.set(0);
+        finished.set(0);
+        failure = null;
+        for (Worker worker : workers) {
+            worker.clear();
+        }
+
+        event.roots = mm.visitRoots(roots);
+
+        collections++;
+        for (Thread thread : threads) {
+            LockSupport.unpark(thread);
+        }
+        work(workers[0]);
+        for (int round = 0; finished.get() < threads.length; round++) {
+            backoff(round);
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+        for (Worker worker : workers) {
+            worker.retire();
+            event.survivors += worker.survivors;
+            event.bytesCopied += worker.bytesCopied;
+            worker.survivors = worker.bytesCopied = 0;
+        }
+
+        mm.clearHeap(fromStart, fromEnd - fromStart);
+
+        firstFreeHeapByte = toTop.get();
+        firstSpace = !firstSpace;
+        fromStart = fromEnd = 0;
+
+        mm.collected(firstFreeHeapByte - to[0]);
+    }
+
+    /**
+     * Releases the workers waiting for a collection and waits for them to finish.
+     */
+    @Override
+    public void shutdown() {
+        if (stopped) {
+            return;
+        }
+
+        stopped = true;
+        for (Thread thread : threads) {
+            LockSupport.unpark(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Unused rests of the buffers are filled by byte-indexed objects with NULL class.
+     */
+    @Override
+    public void visitHeap(HeapVisitor visitor) {
+        visitor.range(firstSpace ? space1[0] : space2[0], firstFreeHeapByte);
+    }
+
+    private void work(Worker worker) {
+        try {
+            while (true) {
+                int obj = worker.pop();
+                if (obj < 0) {
+                    obj = steal(worker);
+                }
+
+                if (obj >= 0) {
+                    scan(worker, obj);
+                } else if (waitForWork()) {
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * An idle worker has an empty deque and only the owner pushes to a deque, so there is no work left when all
+     * workers are idle.
+     *
+     * @return true if the collection is finished
+     */
+    private boolean waitForWork() {
+        idle.incrementAndGet();
+        for (int round = 0; ; round++) {
+            if (idle.get() == workers.length || failure != null) {
+                return true;
+            }
+
+            for (Worker worker : workers) {
+                if (!worker.isEmpty()) {
+                    idle.decrementAndGet();
+                    return false;
+                }
+            }
+
+            backoff(round);
+        }
+    }
+
+    private static void backoff(int round) {
+        if (round < SPINS) {
+            Thread.onSpinWait();
+        } else if (round < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    private int steal(Worker thief) {
+        for (int i = 1; i < workers.length; i++) {
+            int obj = workers[thief.random.nextInt(workers.length)].steal();
+            if (obj >= 0) {
+                return obj;
+            }
+        }
+
+        for (Worker victim : workers) {
+            int obj = victim.steal();
+            if (obj >= 0) {
+                return obj;
+            }
+        }
+
+        return -1;
+    }
+
+    private void scan(Worker worker, int obj) {
+        mm.heapInt(obj + MM.Obj.CLASS_OFFSET, forward(worker, mm.heapInt(obj + MM.Obj.CLASS_OFFSET)));
+        if (mm.isPointerIndexed(obj)) {
+            int size = mm.length(obj);
+            for (int i = 0; i < size; i++) {
+                int address = obj + MM.Obj.DATA_OFFSET + (i * MM.REF_SIZE);
+                mm.heapInt(address, forward(worker, mm.heapInt(address)));
+            }
+        }
+    }
+
+    /**
+     * @return new address of the object, the word itself if it is not an object in from-space
+     */
+    private int forward(Worker worker, int word) {
+        // NULL, tagged small integers and method indexes are negative, classes are in the metaspace
+        if (word < fromStart || word >= fromEnd || mm.heapByte(word) != MM.MARKER) {
+            return word;
+        }
+
+        int busy = 0;
+        while (true) {
+            int header = mm.heapIntVolatile(word);
+            byte state = MM.gcState(header);
+            if (state == GCState.COPIED.value) {
+                return mm.heapInt(word + MM.Obj.CLASS_OFFSET);
+            }
+
+            if (state != GCState.BUSY.value) {
+                if (mm.compareAndSetHeapInt(word, header, MM.header(header, GCState.BUSY))) {
+                    return copy(worker, word, header);
+                }
+            } else {
+                if (failure != null) {
+                    throw failure;
+                }
+                backoff(busy++);
+            }
+        }
+    }
+
+    /**
+     * @param header header word of the object before it was claimed
+     */
+    private int copy(Worker worker, int obj, int header) {
+        int size = mm.objectSize(obj);
+        int to = worker.allocate(size);
+        mm.copyHeap(obj, to, size);
+        mm.heapInt(to, header);
+        worker.survivors++;
+        worker.bytesCopied += size;
+
+        mm.heapInt(obj + MM.Obj.CLASS_OFFSET, to);
+        mm.heapIntVolatile(obj, MM.header(header, GCState.COPIED));
+        worker.push(to);
+        return to;
+    }
+
+    private class Worker {
+
+        private Random random;
+
+        // objects to scan, the owner works at the bottom and thieves take from the top
+        private int[] deque;
+        private volatile int bottom = 0;
+        private AtomicInteger top = new AtomicInteger();
+
+        private int plabTop = 0;
+        private int plabEnd = 0;
+
+        // copied by the worker in a running collection
+        private int survivors = 0;
+        private int bytesCopied = 0;
+
+        Worker(int index, int maxObjects) {
+            random = new Random(index);
+            deque = new int[maxObjects];
+        }
+
+        /**
+         * Called while no worker runs.
+         */
+        void clear() {
+            bottom = 0;
+            top.set(0);
+        }
+
+        /**
+         * Called by the owner only, the object is published by the volatile write of bottom.
+         */
+        void push(int obj) {
+            int b = bottom;
+            deque[b] = obj;
+            bottom = b + 1;
+        }
+
+        /**
+         * Called by the owner only, takes the last object by a CAS only when a thief may take it too.
+         */
+        int pop() {
+            int b = bottom - 1;
+            bottom = b;
+            int t = top.get();
+            if (t > b) {
+                bottom = t;
+                return -1;
+            }
+
+            int obj = deque[b];
+            if (t == b) {
+                if (!top.compareAndSet(t, t + 1)) {
+                    obj = -1;
+                }
+                bottom = t + 1;
+            }
+            return obj;
+        }
+
+        /**
+         * @return object or -1 if the deque is empty or another thread took the object first
+         */
+        int steal() {
+            int t = top.get();
+            if (t >= bottom) {
+                return -1;
+            }
+
+            int obj = deque[t];
+            return top.compareAndSet(t, t + 1) ? obj : -1;
+        }
+
+        boolean isEmpty() {
+            return top.get() >= bottom;
+        }
+
+        /**
+         * A buffer never keeps less than a header of free bytes, so that its rest can be filled by an object.
+         */
+        int allocate(int size) {
+            int free = plabEnd - plabTop;
+            if (size != free && size + MM.HEADER_SIZE > free) {
+                retire();
+
+                while (true) {
+                    int start = toTop.get();
+                    int end = Math.min(start + Math.max(plabSize, size), toEnd);
+                    if (end - start < size) {
+                        throw new RuntimeException("Not enough memory!");
+                    }
+                    if (end - start - size < MM.HEADER_SIZE) {
+                        end = start + size;
+                    }
+
+                    if (toTop.compareAndSet(start, end)) {
+                        plabTop = start;
+                        plabEnd = end;
+                        break;
+                    }
+                }
+            }
+
+            int address = plabTop;
+            plabTop += size;
+            return address;
+        }
+
+        /**
+         * Returns the rest of the buffer to to-space if it was taken last, fills it by garbage otherwise.
+         */
+        void retire() {
+            if (plabTop < plabEnd && !toTop.compareAndSet(plabEnd, plabTop)) {
+                mm.heapInt(plabTop, MM.header(ObjectKind.BYTE_INDEXED, GCState.NORMAL));
+                mm.heapInt(plabTop + MM.Obj.SIZE_OFFSET, plabEnd - plabTop - MM.HEADER_SIZE);
+                mm.heapInt(plabTop + MM.Obj.CLASS_OFFSET, mm.NULL.address);
+            }
+
+            plabTop = plabEnd = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,115 @@
+package vm.mm;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of pause times in the style of HdrHistogram. Values below 2 * SUB_BUCKETS are counted exactly, every
+ * following power of two is split into SUB_BUCKETS buckets of equal width, so a value is known within 1/SUB_BUCKETS of
+ * itself and the whole range of long takes a few thousand counters. Recording allocates nothing.
+ */
+public class PauseHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private long[] counts = new long[bucketIndex(Long.MAX_VALUE) + 1];
+    private long count = 0;
+    private long total = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    /**
+     * @param value non-negative, such as a pause in nanoseconds
+     */
+    public void record(long value) {
+        if (value < 0) {
+            throw new RuntimeException("Negative value " + value + "!");
+        }
+
+        counts[bucketIndex(value)]++;
+        count++;
+        total += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long total() {
+        return total;
+    }
+
+    /**
+     * @return exact smallest value, 0 if nothing was recorded
+     */
+    public long min() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * @return exact largest value
+     */
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the largest value equivalent to the value at the percentile, never more than max, 0 if nothing was
+     * recorded
+     */
+    public long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = total = max = 0;
+        min = Long.MAX_VALUE;
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long highestEquivalentValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+        int subBucket = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "count " + count + ", min " + min() + ", mean " + (long) mean() + ", p50 " + percentile(50) + ", p90 "
+                + percentile(90) + ", p99 " + percentile(99) + ", p99.9 " + percentile(99.9) + ", max " + max;
+    }
+
+}
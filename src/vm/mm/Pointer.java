@@ -77,10 +77,25 @@ public class Pointer {
         return false;
     }
 
+    /**
+     * @return true if this is not a pointer to an object but a tagged small integer
+     */
+    public boolean isSmallInteger() {
+        return MM.isTaggedSmallInteger(address);
+    }
+
+    public int smallIntegerValue() {
+        return MM.untagSmallInteger(address);
+    }
+
     private void checkNull() {
         if (isNull()) {
             throw new RuntimeException("Dereferencing NULL pointer!");
         }
+
+        if (isSmallInteger()) {
+            throw new RuntimeException("Dereferencing small integer!");
+        }
     }
 
     @Override
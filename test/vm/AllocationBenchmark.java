@@ -0,0 +1,63 @@
+package vm;
+
+import vm.mm.BakerGC;
+import vm.mm.MM;
+
+import static vm.Util.int2bytes;
+import static vm.Util.str2bytes;
+
+/**
+ * Measures allocation throughput of the VM - objects allocated per second by newArray, newString and newInteger.
+ * Nothing is kept alive, so collections only flip and clear the semispaces. Prints the best of several rounds.
+ * <p/>
+ * Collections clear the idle semispace in the background when "background" is given as the first argument.
+ */
+public class AllocationBenchmark {
+
+    private static final int OBJECTS = 1000000;
+
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        BakerGC gc = new BakerGC();
+        if (args.length > 0 && args[0].equals("background")) {
+            gc.clearInBackground();
+        }
+        MM mm = new MM(64 * 1024, 16 * 1024 * 1024, 1024, gc);
+        ClausVM vm = new ClausVM(mm);
+
+        byte[] string = str2bytes("knapsack");
+        byte[] integer = int2bytes(1 << 30);
+
+        long arrays = Long.MAX_VALUE;
+        long strings = Long.MAX_VALUE;
+        long integers = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < OBJECTS; i++) {
+                vm.newArray(4);
+            }
+            arrays = Math.min(arrays, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < OBJECTS; i++) {
+                vm.newString(string);
+            }
+            strings = Math.min(strings, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < OBJECTS; i++) {
+                vm.newInteger(integer);
+            }
+            integers = Math.min(integers, System.nanoTime() - start);
+        }
+
+        mm.shutdown();
+
+        System.out.println("allocation;objects/s");
+        System.out.println("array;" + OBJECTS * 1000000000L / arrays);
+        System.out.println("string;" + OBJECTS * 1000000000L / strings);
+        System.out.println("integer;" + OBJECTS * 1000000000L / integers);
+    }
+
+}
@@ -8,9 +8,12 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static vm.Util.*;
 
@@ -76,12 +79,86 @@ public class ClausVMTest {
         vm.run(entryPointPointer, 1);
     }
 
+    @Test
+    public void quickening() {
+        Pointer classCar = vm.newClazz("Car", 1);
+
+        String[] entryPoint = new String[]{
+                "new " + mm.addConstant("Car"),
+                "pop-ref",
+                "new-str " + mm.addConstant("quick"),
+                "call " + mm.addConstant("length"),
+                "pop-ref",
+                "return"
+        };
+        CodePointer entryPointPointer = mm.storeCode(Util.translateBytecode(entryPoint));
+        int pc = mm.instructionIndex(entryPointPointer);
+        int[] code = mm.instructions();
+
+        vm.run(entryPointPointer);
+
+        assertEquals(Bytecode.strings2bytecodes.get("new-quick").code, code[pc]);
+        assertEquals(classCar.$c().id(), code[pc + 1]);
+        assertEquals(Bytecode.strings2bytecodes.get("new-str-quick").code, code[pc + 3]);
+        assertEquals(Bytecode.strings2bytecodes.get("call-quick").code, code[pc + 5]);
+
+        // running the quickened code again
+        vm.run(entryPointPointer);
+    }
+
     @Test
     public void syscall() {
         mm.pushPointer(vm.newString(str2bytes("testing syscall directly")));
         Syscalls.ints2calls.get(1).call();
     }
 
+    @Test
+    public void primitive() {
+        int twice = vm.registerPrimitive("twice", 1, new ClausVM.Primitive() {
+            @Override
+            public int call(int[] stack, int first) {
+                return vm.newIntegerWord(2 * vm.intValue(stack[first]));
+            }
+        });
+        assertEquals(twice, (int) vm.syscallNumber("twice"));
+
+        mm.pushPointer(vm.newInteger(21));
+        vm.syscall(twice).call();
+        assertEquals(42, vm.intValue(mm.popPointer()));
+
+        // registered on the first VM only
+        ClausVM other = new ClausVM(new MM(4096, 4096, 4096));
+        assertNull(other.syscallNumber("twice"));
+        assertNull(other.primitive("twice"));
+        assertNull(Syscalls.calls2ints.get("twice"));
+    }
+
+    @Test
+    public void stringLength() {
+        int strLength = vm.syscallNumber("str-length");
+
+        mm.pushPointer(vm.newString(str2bytes("length")));
+        vm.syscall(strLength).call();
+        assertEquals(6, vm.intValue(mm.popPointer()));
+
+        // characters as decoded by bytes2str, not bytes
+        byte[] bytes = "d\u00e9j\u00e0 vu".getBytes(StandardCharsets.UTF_8);
+        mm.pushPointer(vm.newString(bytes));
+        vm.syscall(strLength).call();
+        assertEquals(bytes2str(bytes).length(), vm.intValue(mm.popPointer()));
+    }
+
+    @Test
+    public void intrinsic() {
+        Pointer arr = vm.newArray(7);
+        int stackPointer = mm.stackPointer();
+
+        // no frame is created, the result is on the stack right away
+        vm.callMethod(arr, "length");
+        assertEquals(stackPointer + 1, mm.stackPointer());
+        assertEquals(7, vm.intValue(mm.popPointer()));
+    }
+
     @Test(expected = RuntimeException.class)
     public void nonexistingMethod() {
         Pointer someClass = vm.newClazz("SomeClass");
@@ -193,6 +270,21 @@ public class ClausVMTest {
         vm.run(entryPointPointer);
     }
 
+    @Test
+    public void testSmallIntegers() {
+        Pointer small = vm.newInteger(-42);
+        assertTrue(small.isSmallInteger());
+        assertEquals(-42, vm.intValue(small));
+        assertEquals(vm.getClazz("Integer"), vm.classOf(small));
+
+        Pointer big = vm.newInteger(MM.SMALL_INT_MAX + 1);
+        assertFalse(big.isSmallInteger());
+        assertEquals(MM.SMALL_INT_MAX + 1, vm.intValue(big));
+        assertEquals(vm.getClazz("Integer"), vm.classOf(big));
+
+        assertEquals(MM.SMALL_INT_MIN, vm.intValue(vm.newInteger(MM.SMALL_INT_MIN)));
+    }
+
     @Test
     public void testString() {
         String[] entryPoint = new String[]{
@@ -0,0 +1,50 @@
+package vm;
+
+import org.junit.Test;
+import vm.mm.CodePointer;
+import vm.mm.Method;
+
+import static org.junit.Assert.*;
+
+public class InlineCacheTest {
+
+    private Method method(String selector) {
+        return new Method(selector, 0, new CodePointer(0, null), 0, 0);
+    }
+
+    @Test
+    public void monomorphic() {
+        InlineCache cache = new InlineCache(0, 0);
+        Method m = method("add");
+
+        assertNull(cache.lookup(1, 0));
+        cache.add(1, m);
+        assertSame(m, cache.lookup(1, 0));
+        assertNull(cache.lookup(2, 0));
+    }
+
+    @Test
+    public void polymorphicAndMegamorphic() {
+        InlineCache cache = new InlineCache(0, 0);
+        for (int i = 0; i < InlineCache.SIZE; i++) {
+            cache.add(i, method("length"));
+        }
+        assertFalse(cache.isMegamorphic());
+        assertEquals(InlineCache.SIZE, cache.size());
+
+        cache.add(InlineCache.SIZE, method("length"));
+        assertTrue(cache.isMegamorphic());
+        assertNull(cache.lookup(InlineCache.SIZE, 0));
+        assertNotNull(cache.lookup(0, 0));
+    }
+
+    @Test
+    public void flushedWhenMethodsChange() {
+        InlineCache cache = new InlineCache(0, 0);
+        cache.add(1, method("add"));
+
+        assertNull(cache.lookup(1, 1));
+        assertEquals(0, cache.size());
+    }
+
+}
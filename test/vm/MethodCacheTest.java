@@ -0,0 +1,38 @@
+package vm;
+
+import org.junit.Test;
+import vm.mm.CodePointer;
+import vm.mm.Method;
+
+import static org.junit.Assert.*;
+
+public class MethodCacheTest {
+
+    private Method method(String selector, int symbol) {
+        return new Method(selector, symbol, new CodePointer(0, null), 0, 0);
+    }
+
+    @Test
+    public void lookup() {
+        MethodCache cache = new MethodCache(0);
+        Method add = method("add", 1);
+        Method length = method("length", 2);
+
+        assertNull(cache.lookup(5, 1, 0));
+        cache.add(5, 1, add);
+        cache.add(5, 2, length);
+        assertSame(add, cache.lookup(5, 1, 0));
+        assertSame(length, cache.lookup(5, 2, 0));
+        assertNull(cache.lookup(6, 1, 0));
+    }
+
+    @Test
+    public void flushedWhenMethodsChange() {
+        MethodCache cache = new MethodCache(0);
+        cache.add(5, 1, method("add", 1));
+
+        assertNull(cache.lookup(5, 1, 1));
+        assertNull(cache.lookup(5, 1, 1));
+    }
+
+}
@@ -46,4 +46,43 @@ public class UtilTest {
         assertArrayEquals(expected, output);
     }
 
+    @Test
+    public void optimizeBytecode() {
+        String[] output = Util.optimizeBytecode(new String[]{
+                "pop-arg 0",
+                "push-int 3",
+                "get-field",
+                "pop-arg 1",
+                "pop-arg 0",
+                "add-int",
+                "return-top"
+        });
+
+        assertArrayEquals(new String[]{"get-self-field 3", "pop-arg-pair 1 0", "add-int-return"}, output);
+    }
+
+    @Test
+    public void optimizeBytecodeJumps() {
+        String[] output = Util.optimizeBytecode(new String[]{
+                "jmp-ge-int 15",
+                "pop-arg 1",
+                "pop-arg 0",
+                "jmp 5",
+                "pop-arg 0",
+                "pop-arg 1",
+                "add-int",
+                "return-top"
+        });
+
+        // the jump into the second pair prevents fusing it
+        assertArrayEquals(new String[]{
+                "jmp-ge-int 14",
+                "pop-arg-pair 1 0",
+                "jmp 5",
+                "pop-arg 0",
+                "pop-arg 1",
+                "add-int-return"
+        }, output);
+    }
+
 }
@@ -0,0 +1,126 @@
+package vm.jit;
+
+import org.junit.Before;
+import org.junit.Test;
+import vm.Bytecode;
+import vm.ClausVM;
+import vm.ExecutionMode;
+import vm.Util;
+import vm.mm.CodePointer;
+import vm.mm.MM;
+import vm.mm.Method;
+import vm.mm.Pointer;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class ClosureCompilerTest {
+
+    private MM mm;
+
+    private ClausVM vm;
+
+    private Pointer result;
+
+    private CodePointer entryPoint;
+
+    @Before
+    public void setup() {
+        int size = 4096;
+        mm = new MM(size, size, size);
+        vm = new ClausVM(mm, ExecutionMode.CLOSURES);
+
+        // sum(n): i = 0; s = 0; while (i < n) { s = s + i; i = i + 1 }; return s
+        String[] sumBC = new String[]{
+                "new-int 0",
+                "push-local 0",
+                "new-int 0",
+                "push-local 1",
+                "pop-local 0",
+                "pop-arg 1",
+                "jmp-ge-int " + (11 * MM.INSTR_SIZE + 9 * MM.WORD_SIZE),
+                "pop-local 0",
+                "pop-local 1",
+                "call " + mm.addConstant("add"),
+                "push-local 1",
+                "pop-ref",
+                "pop-local 0",
+                "new-int 1",
+                "call " + mm.addConstant("add"),
+                "push-local 0",
+                "pop-ref",
+                "jmp -" + (14 * MM.INSTR_SIZE + 12 * MM.WORD_SIZE),
+                "pop-local 1",
+                "return-top"
+        };
+        Pointer clazz = vm.newClazz("Summer", 0, vm.getClazz("Object"));
+        CodePointer sum = mm.storeCode(Util.translateBytecode(sumBC));
+        clazz.$c().methods(vm.newMethodDictionary(asList(new Integer[]{vm.newMethod("sum", sum, 2)})));
+
+        result = vm.newArray(1);
+        String[] entryPointBC = new String[]{
+                "new-int 30",
+                "new " + mm.addConstant("Summer"),
+                "call " + mm.addConstant("sum"),
+                "push-local 0",
+                "pop-ref",
+                "push-ref " + result.address,
+                "push-int 0",
+                "pop-local 0",
+                "set-field",
+                "return"
+        };
+        entryPoint = mm.storeCode(Util.translateBytecode(entryPointBC));
+    }
+
+    private Method method(String clazz, String selector) {
+        return vm.lookupMethod(vm.getClazz(clazz), selector);
+    }
+
+    private int sum() {
+        vm.run(entryPoint, 1);
+        return vm.intValue(result.$p().field(0));
+    }
+
+    @Test
+    public void closures() {
+        vm.jit().enabled(false);
+
+        assertEquals(435, sum());
+        assertNotNull(method("Summer", "sum").closure());
+        assertNotNull(method("Integer", "add").closure());
+        assertNull(method("Summer", "sum").compiled());
+        assertEquals(30, method("Summer", "sum").backedges());
+
+        assertEquals(435, sum());
+        assertEquals(60, method("Summer", "sum").backedges());
+    }
+
+    @Test
+    public void newQuickened() {
+        vm.jit().enabled(false);
+        // new follows new-int and its operand
+        int pc = mm.instructionIndex(entryPoint) + 2;
+        assertEquals(Bytecode.strings2bytecodes.get("new").code, mm.instructions()[pc]);
+
+        // the class is looked up by name when the program is compiled, by ID when it runs
+        assertEquals(435, sum());
+        assertEquals(Bytecode.strings2bytecodes.get("new-quick").code, mm.instructions()[pc]);
+        assertEquals(vm.getClazz("Summer").$c().id(), mm.instructions()[pc + 1]);
+        assertEquals(435, sum());
+    }
+
+    @Test
+    public void promotedToJIT() {
+        vm.jit().thresholds(2, JIT.BACKEDGE_THRESHOLD);
+
+        assertEquals(435, sum());
+        assertNotNull(method("Summer", "sum").closure());
+        assertNull(method("Summer", "sum").compiled());
+
+        assertEquals(435, sum());
+        assertNotNull(method("Summer", "sum").compiled());
+        assertEquals(435, sum());
+    }
+
+}
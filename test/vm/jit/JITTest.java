@@ -0,0 +1,118 @@
+package vm.jit;
+
+import org.junit.Before;
+import org.junit.Test;
+import vm.ClausVM;
+import vm.Util;
+import vm.mm.CodePointer;
+import vm.mm.MM;
+import vm.mm.Method;
+import vm.mm.Pointer;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class JITTest {
+
+    private MM mm;
+
+    private ClausVM vm;
+
+    private Pointer result;
+
+    private CodePointer entryPoint;
+
+    @Before
+    public void setup() {
+        int size = 4096;
+        mm = new MM(size, size, size);
+        vm = new ClausVM(mm);
+
+        // sum(n): i = 0; s = 0; while (i < n) { s = s + i; i = i + 1 }; return s
+        String[] sumBC = new String[]{
+                "new-int 0",
+                "push-local 0",
+                "new-int 0",
+                "push-local 1",
+                "pop-local 0",
+                "pop-arg 1",
+                "jmp-ge-int " + (11 * MM.INSTR_SIZE + 9 * MM.WORD_SIZE),
+                "pop-local 0",
+                "pop-local 1",
+                "call " + mm.addConstant("add"),
+                "push-local 1",
+                "pop-ref",
+                "pop-local 0",
+                "new-int 1",
+                "call " + mm.addConstant("add"),
+                "push-local 0",
+                "pop-ref",
+                "jmp -" + (14 * MM.INSTR_SIZE + 12 * MM.WORD_SIZE),
+                "pop-local 1",
+                "return-top"
+        };
+        Pointer clazz = vm.newClazz("Summer", 0, vm.getClazz("Object"));
+        CodePointer sum = mm.storeCode(Util.translateBytecode(sumBC));
+        clazz.$c().methods(vm.newMethodDictionary(asList(new Integer[]{vm.newMethod("sum", sum, 2)})));
+
+        result = vm.newArray(1);
+        String[] entryPointBC = new String[]{
+                "new-int 30",
+                "new " + mm.addConstant("Summer"),
+                "call " + mm.addConstant("sum"),
+                "push-local 0",
+                "pop-ref",
+                "push-ref " + result.address,
+                "push-int 0",
+                "pop-local 0",
+                "set-field",
+                "return"
+        };
+        entryPoint = mm.storeCode(Util.translateBytecode(entryPointBC));
+    }
+
+    private Method method(String clazz, String selector) {
+        return vm.lookupMethod(vm.getClazz(clazz), selector);
+    }
+
+    private int sum() {
+        vm.run(entryPoint, 1);
+        return vm.intValue(result.$p().field(0));
+    }
+
+    @Test
+    public void interpreted() {
+        vm.jit().enabled(false);
+
+        assertEquals(435, sum());
+        assertEquals(435, sum());
+        assertNull(method("Summer", "sum").compiled());
+        assertEquals(2, method("Summer", "sum").invocations());
+    }
+
+    @Test
+    public void compiledOnInvocations() {
+        vm.jit().thresholds(1, JIT.BACKEDGE_THRESHOLD);
+
+        assertEquals(435, sum());
+        assertNotNull(method("Summer", "sum").compiled());
+        assertNotNull(method("Integer", "add").compiled());
+        assertEquals(435, sum());
+    }
+
+    @Test
+    public void compiledOnBackedges() {
+        // only sum gets compiled, its calls of add go back to the interpreter
+        vm.jit().thresholds(Integer.MAX_VALUE, 30);
+
+        assertEquals(435, sum());
+        assertNull(method("Summer", "sum").compiled());
+        assertEquals(30, method("Summer", "sum").backedges());
+
+        assertEquals(435, sum());
+        assertNotNull(method("Summer", "sum").compiled());
+        assertNull(method("Integer", "add").compiled());
+        assertEquals(435, sum());
+    }
+
+}
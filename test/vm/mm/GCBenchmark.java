@@ -0,0 +1,106 @@
+package vm.mm;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures pauses of the Baker collector against the size of the live data. Live data is a binary tree of objects
+ * referenced from the stack, the same amount of garbage is allocated among them. Prints live bytes, the
+ * shortest pause and Java bytes allocated by a collection.
+ * <p/>
+ * The parallel copying collector is measured instead when the number of its threads is given as the first argument.
+ * With "scaling" as the first argument the parallel collector copies the biggest tree with 1, 2, 4... threads up to
+ * twice the number of cores, the speedup is relative to a single thread.
+ */
+public class GCBenchmark {
+
+    private static final int REPEAT = 50;
+
+    private static final int MAX_OBJECTS = 64000;
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("scaling")) {
+            scaling();
+            return;
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        System.out.println("live bytes;pause us;allocated bytes");
+        for (int objects = 1000; objects <= MAX_OBJECTS; objects *= 2) {
+            GCPolicy gc = args.length > 0 ? new ParallelCopyingGC(Integer.parseInt(args[0])) : new BakerGC();
+            MM mm = tree(gc, objects);
+
+            long best = Long.MAX_VALUE;
+            long allocated = 0;
+            for (int i = 0; i < REPEAT; i++) {
+                long bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                long start = System.nanoTime();
+                gc.collect();
+                best = Math.min(best, System.nanoTime() - start);
+                allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+            }
+
+            System.out.println(objects * mm.pointerIndexedObjectSize(2) + ";" + best / 1000 + ";" + allocated);
+            mm.shutdown();
+        }
+    }
+
+    private static void scaling() {
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("cores;threads;pause us;speedup");
+        long single = 0;
+        for (int threads = 1; threads <= Math.max(4, 2 * cores); threads *= 2) {
+            ParallelCopyingGC gc = new ParallelCopyingGC(threads);
+            MM mm = tree(gc, MAX_OBJECTS);
+
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < REPEAT; i++) {
+                long start = System.nanoTime();
+                gc.collect();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            if (threads == 1) {
+                single = best;
+            }
+
+            System.out.println(cores + ";" + threads + ";" + best / 1000 + ";" + String.format("%.2f", (double) single / best));
+            mm.shutdown();
+        }
+    }
+
+    /**
+     * @return memory holding the tree and the garbage, the heap is big enough for nothing to move while it is built
+     */
+    private static MM tree(GCPolicy gc, int objects) {
+        MM mm = new MM(1024, 8 * 1024 * 1024, 1024, gc);
+
+        Pointer[] nodes = new Pointer[objects];
+        for (int i = 0; i < objects; i++) {
+            node(mm);
+            nodes[i] = node(mm);
+        }
+        for (int i = 0; i < objects; i++) {
+            if (2 * i + 1 < objects) {
+                nodes[i].$p().field(0, nodes[2 * i + 1]);
+            }
+            if (2 * i + 2 < objects) {
+                nodes[i].$p().field(1, nodes[2 * i + 2]);
+            }
+        }
+        mm.pushPointer(nodes[0]);
+        return mm;
+    }
+
+    private static Pointer node(MM mm) {
+        Pointer node = mm.alloc(mm.pointerIndexedObjectSize(2));
+        node.$().marker(MM.MARKER);
+        node.$().kind(ObjectKind.POINTER_INDEXED);
+        node.$().gcState(GCState.NORMAL);
+        node.$().size(2);
+        node.$p().field(0, mm.NULL);
+        node.$p().field(1, mm.NULL);
+        return node;
+    }
+
+}
@@ -5,10 +5,16 @@ import vm.ClausVM;
 import vm.Syscalls;
 import vm.Util;
 
-import java.util.Iterator;
-import java.util.Set;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 import static vm.Util.bytes2str;
 import static vm.Util.str2bytes;
 
@@ -17,46 +23,62 @@ public class GCTest {
     @Test
     public void testRootset() {
         MM mm = new MM(1024, 1024, 1024);
+        int heap = MM.METASPACE_SIZE;
 
         mm.pushInt(-1); // caller
         mm.pushInt(0); // return address
 
-        Pointer obj = new Pointer(100, mm);
+        Pointer obj = new Pointer(heap + 100, mm);
         obj.$().marker(MM.MARKER);
         mm.pushPointer(obj);
 
-        obj = new Pointer(200, mm);
+        obj = new Pointer(heap + 200, mm);
         obj.$().marker(MM.MARKER);
         mm.pushPointer(obj);
 
         mm.newFrame(2);
 
-        obj = new Pointer(300, mm);
+        obj = new Pointer(heap + 300, mm);
         obj.$().marker(MM.MARKER);
         mm.pushPointer(obj);
 
-        obj = new Pointer(400, mm);
+        obj = new Pointer(heap + 400, mm);
         obj.$().marker(MM.MARKER);
         mm.local(1, obj);
 
         mm.local(0, mm.arg(0));
 
-        Set<Pointer> rootSet = mm.scanStack();
-
-        assertEquals(4, rootSet.size());
-        Iterator<Pointer> it = rootSet.iterator();
-        assertEquals(100, it.next().address);
-        assertEquals(200, it.next().address);
-        assertEquals(400, it.next().address);
-        assertEquals(300, it.next().address);
+        // every slot is visited, the second object twice, raw words of the frame never
+        List<Integer> roots = roots(mm);
+        assertEquals(5, roots.size());
+        assertEquals(heap + 100, (int) roots.get(0));
+        assertEquals(heap + 200, (int) roots.get(1));
+        assertEquals(heap + 200, (int) roots.get(2));
+        assertEquals(heap + 400, (int) roots.get(3));
+        assertEquals(heap + 300, (int) roots.get(4));
 
         mm.discardFrame();
 
-        rootSet = mm.scanStack();
-        assertEquals(2, rootSet.size());
-        it = rootSet.iterator();
-        assertEquals(100, it.next().address);
-        assertEquals(200, it.next().address);
+        roots = roots(mm);
+        assertEquals(2, roots.size());
+        assertEquals(heap + 100, (int) roots.get(0));
+        assertEquals(heap + 200, (int) roots.get(1));
+    }
+
+    /**
+     * @return roots in the order they are visited, left in place
+     */
+    private List<Integer> roots(MM mm) {
+        final List<Integer> roots = new ArrayList<Integer>();
+        int count = mm.visitRoots(new GCPolicy.RootVisitor() {
+            @Override
+            public int root(int word) {
+                roots.add(word);
+                return word;
+            }
+        });
+        assertEquals(roots.size(), count);
+        return roots;
     }
 
     @Test
@@ -249,7 +271,7 @@ public class GCTest {
     @Test
     public void testBaker05() {
         // small heap
-        MM mm = new MM(1024, 102, 1024);
+        MM mm = new MM(1024, 120, 1024);
 
         Pointer root1 = mm.alloc(mm.pointerIndexedObjectSize(0));
         root1.$().marker(MM.MARKER);
@@ -283,6 +305,719 @@ public class GCTest {
         assertEquals("test", bytes2str(root2.$p().field(0).$b().bytes()));
     }
 
+    @Test
+    public void testGenerationalPromotion() {
+        // nursery halves of 100 B
+        GenerationalGC gc = new GenerationalGC(200);
+        MM mm = new MM(1024, 400, 1024, gc);
+
+        Pointer root = mm.alloc(mm.pointerIndexedObjectSize(1));
+        root.$().marker(MM.MARKER);
+        root.$().kind(ObjectKind.POINTER_INDEXED);
+        root.$().gcState(GCState.NORMAL);
+        root.$().size(1);
+        root.$p().field(0, mm.NULL);
+        mm.pushPointer(root);
+
+        assertTrue(gc.inNursery(root));
+
+        // garbage, survives PROMOTION_AGE minor collections
+        for (int i = 0; i < 20; i++) {
+            mm.alloc(20);
+        }
+
+        root = mm.popPointer();
+
+        assertFalse(gc.inNursery(root));
+        assertEquals(MM.MARKER, root.$().marker());
+        assertEquals(ObjectKind.POINTER_INDEXED, root.$().kind());
+        assertEquals(GCState.NORMAL, root.$().gcState());
+        assertEquals(1, root.$().size());
+    }
+
+    @Test
+    public void testWriteBarrier() {
+        // nursery halves of 100 B
+        GenerationalGC gc = new GenerationalGC(200);
+        MM mm = new MM(1024, 600, 1024, gc);
+
+        // too big for the nursery, allocated in the old generation
+        Pointer old = mm.alloc(mm.pointerIndexedObjectSize(25));
+        old.$().marker(MM.MARKER);
+        old.$().kind(ObjectKind.POINTER_INDEXED);
+        old.$().gcState(GCState.NORMAL);
+        old.$().size(25);
+        old.$p().field(0, mm.NULL);
+        mm.pushPointer(old);
+        int oldAddress = old.address;
+
+        assertFalse(gc.inNursery(old));
+
+        // referenced only from the old object
+        Pointer young = mm.alloc(mm.byteIndexedObjectSize(4));
+        young.$().marker(MM.MARKER);
+        young.$().kind(ObjectKind.BYTE_INDEXED);
+        young.$().gcState(GCState.NORMAL);
+        young.$().size(4);
+        young.$b().bytes("test".getBytes());
+        old.$p().field(0, young);
+
+        assertEquals(GCState.REMEMBERED, old.$().gcState());
+
+        // garbage
+        for (int i = 0; i < 20; i++) {
+            mm.alloc(20);
+        }
+
+        old = mm.popPointer();
+
+        // minor collections do not move old objects
+        assertEquals(oldAddress, old.address);
+        assertFalse(gc.inNursery(old.$p().field(0)));
+        assertEquals("test", bytes2str(old.$p().field(0).$b().bytes()));
+    }
+
+    @Test
+    public void testRememberedRootInMajorCollection() {
+        // nursery halves of 100 B
+        GenerationalGC gc = new GenerationalGC(200);
+        MM mm = new MM(1024, 600, 1024, gc);
+        ClausVM vm = new ClausVM(mm);
+        GCStatistics statistics = new GCStatistics();
+        mm.addGCListener(statistics);
+
+        // too big for the nursery, remembered as it points to the young object
+        Pointer old = vm.newArray(25);
+        Pointer young = vm.newArray(1);
+        assertFalse(gc.inNursery(old));
+        old.$p().field(0, young);
+        young.$p().field(0, old);
+        assertEquals(GCState.REMEMBERED, old.$().gcState());
+
+        // the old object is a root and a field of the young one
+        mm.pushPointer(old);
+        mm.pushPointer(young);
+        gc.collect();
+        young = mm.popPointer();
+        old = mm.popPointer();
+
+        assertEquals(old.address, young.$p().field(0).address);
+        assertEquals(young.address, old.$p().field(0).address);
+        // each copied once
+        assertEquals(2, statistics.survivors());
+    }
+
+    @Test
+    public void testMarkCompact() {
+        // baker would have only 45 B
+        MM mm = new MM(1024, 90, 1024, new MarkCompactGC());
+
+        // garbage
+        mm.alloc(20);
+
+        Pointer root1 = mm.alloc(mm.pointerIndexedObjectSize(1));
+        root1.$().marker(MM.MARKER);
+        root1.$().kind(ObjectKind.POINTER_INDEXED);
+        root1.$().gcState(GCState.NORMAL);
+        root1.$().size(1);
+        mm.pushPointer(root1);
+
+        // garbage
+        mm.alloc(20);
+
+        Pointer obj1 = mm.alloc(mm.byteIndexedObjectSize(4));
+        obj1.$().marker(MM.MARKER);
+        obj1.$().kind(ObjectKind.BYTE_INDEXED);
+        obj1.$().gcState(GCState.NORMAL);
+        obj1.$().size(4);
+        obj1.$b().bytes("test".getBytes());
+        root1.$p().field(0, obj1);
+
+        mm.alloc(30);
+
+        root1 = mm.popPointer();
+
+        // live objects are slid to the start of the heap in allocation order
+        assertEquals(MM.METASPACE_SIZE, root1.address);
+        assertEquals(MM.METASPACE_SIZE + mm.pointerIndexedObjectSize(1), root1.$p().field(0).address);
+        assertEquals(MM.MARKER, root1.$().marker());
+        assertEquals(ObjectKind.POINTER_INDEXED, root1.$().kind());
+        assertEquals(GCState.NORMAL, root1.$().gcState());
+        assertEquals("test", bytes2str(root1.$p().field(0).$b().bytes()));
+    }
+
+    @Test
+    public void testHeapSizing() {
+        HeapSizing sizing = new HeapSizing(100, 1000);
+        sizing.gcTimeRatio(1);
+        MM mm = new MM(1024, 100, 1024, new BakerGC(sizing));
+
+        // 84 B of live objects do not fit into a semispace of 48 B
+        for (int i = 0; i < 7; i++) {
+            Pointer obj = mm.alloc(mm.pointerIndexedObjectSize(0));
+            obj.$().marker(MM.MARKER);
+            obj.$().kind(ObjectKind.POINTER_INDEXED);
+            obj.$().gcState(GCState.NORMAL);
+            obj.$().size(0);
+            mm.pushPointer(obj);
+        }
+
+        int grown = mm.heapSize();
+        assertTrue(grown > 100);
+        for (int i = 0; i < 7; i++) {
+            Pointer obj = mm.popPointer();
+            assertEquals(MM.MARKER, obj.$().marker());
+            assertEquals(ObjectKind.POINTER_INDEXED, obj.$().kind());
+            assertEquals(0, obj.$().size());
+        }
+
+        // everything is garbage now
+        for (int i = 0; i < 10; i++) {
+            mm.alloc(20);
+        }
+
+        assertTrue(mm.heapSize() < grown);
+        assertTrue(mm.heapSize() >= 100);
+    }
+
+    @Test
+    public void testHeapSizingTimeRatio() {
+        // the mutator runs 1000 ns before the first collection of 10 ns, 10 ns before the second one of 1000 ns
+        HeapSizing sizing = new ScriptedHeapSizing(200, 10000, 0, 1000, 1010, 1020, 2020);
+        sizing.gcTimeRatio(0.5);
+        MM mm = new MM(1024, 200, 1024, new BakerGC(sizing));
+        GCStatistics statistics = new GCStatistics();
+        mm.addGCListener(statistics);
+
+        // garbage only, the heap is sized by time
+        while (statistics.collections() < 1) {
+            mm.alloc(20);
+        }
+        assertEquals(200, mm.heapSize());
+
+        // grows at the expensive collection itself
+        while (statistics.collections() < 2) {
+            mm.alloc(20);
+        }
+        assertEquals(400, mm.heapSize());
+    }
+
+    /**
+     * Returns the given times instead of the clock, the first one when created.
+     */
+    private static class ScriptedHeapSizing extends HeapSizing {
+
+        private long[] times;
+        private int next = 0;
+
+        ScriptedHeapSizing(int minHeapSize, int maxHeapSize, long... times) {
+            super(minHeapSize, maxHeapSize);
+            this.times = times;
+            collectionFinished();
+        }
+
+        @Override
+        long now() {
+            return times[next++];
+        }
+
+    }
+
+    @Test
+    public void testParallelCopying() {
+        ParallelCopyingGC gc = new ParallelCopyingGC(4);
+        MM mm = new MM(1024, 100000, 1024, gc);
+
+        // shared by all nodes, the workers race to copy it
+        Pointer shared = mm.alloc(mm.byteIndexedObjectSize(4));
+        shared.$().marker(MM.MARKER);
+        shared.$().kind(ObjectKind.BYTE_INDEXED);
+        shared.$().gcState(GCState.NORMAL);
+        shared.$b().size(4);
+        shared.$b().bytes("test".getBytes());
+
+        // binary tree, every node knows its index
+        int count = 500;
+        Pointer[] nodes = new Pointer[count];
+        for (int i = 0; i < count; i++) {
+            // garbage
+            mm.alloc(mm.byteIndexedObjectSize(i % 7));
+
+            nodes[i] = mm.alloc(mm.pointerIndexedObjectSize(4));
+            nodes[i].$().marker(MM.MARKER);
+            nodes[i].$().kind(ObjectKind.POINTER_INDEXED);
+            nodes[i].$().gcState(GCState.NORMAL);
+            nodes[i].$().size(4);
+            nodes[i].$p().field(0, mm.NULL);
+            nodes[i].$p().field(1, mm.NULL);
+            nodes[i].$p().field(2, mm.smallInteger(i));
+            nodes[i].$p().field(3, shared);
+        }
+        for (int i = 0; i < count; i++) {
+            if (2 * i + 1 < count) {
+                nodes[i].$p().field(0, nodes[2 * i + 1]);
+            }
+            if (2 * i + 2 < count) {
+                nodes[i].$p().field(1, nodes[2 * i + 2]);
+            }
+        }
+        mm.pushPointer(nodes[0]);
+
+        gc.collect();
+        gc.collect();
+
+        nodes[0] = mm.popPointer();
+        shared = nodes[0].$p().field(3);
+        assertEquals("test", bytes2str(shared.$b().bytes()));
+        for (int i = 0; i < count; i++) {
+            assertEquals(MM.MARKER, nodes[i].$().marker());
+            assertEquals(GCState.NORMAL, nodes[i].$().gcState());
+            assertEquals(i, MM.untagSmallInteger(nodes[i].$p().field(2).address));
+            assertEquals(shared.address, nodes[i].$p().field(3).address);
+            if (2 * i + 1 < count) {
+                nodes[2 * i + 1] = nodes[i].$p().field(0);
+            }
+            if (2 * i + 2 < count) {
+                nodes[2 * i + 2] = nodes[i].$p().field(1);
+            }
+        }
+
+        // the survivors and the rests of copy buffers can be walked object by object
+        int found = 0;
+        for (int obj = MM.METASPACE_SIZE; mm.isObject(obj); obj += mm.objectSize(obj)) {
+            if (mm.isPointerIndexed(obj)) {
+                found++;
+            }
+        }
+        assertEquals(count, found);
+
+        mm.shutdown();
+    }
+
+    @Test
+    public void testParallelShutdown() {
+        int before = threads("GC worker");
+        ParallelCopyingGC gc = new ParallelCopyingGC(4);
+        MM mm = new MM(1024, 1000, 1024, gc);
+        assertEquals(before + 3, threads("GC worker"));
+
+        mm.shutdown();
+        assertEquals(before, threads("GC worker"));
+        try {
+            gc.collect();
+            fail();
+        } catch (RuntimeException e) {
+            // shut down
+        }
+    }
+
+    private int threads(String name) {
+        int threads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(name) && thread.isAlive()) {
+                threads++;
+            }
+        }
+        return threads;
+    }
+
+    @Test
+    public void testIncrementalBaker() {
+        IncrementalBakerGC gc = new IncrementalBakerGC();
+        MM mm = new MM(1024, 400, 1024, gc);
+
+        // list of 5 objects
+        Pointer list = mm.NULL;
+        for (int i = 0; i < 5; i++) {
+            mm.pushPointer(list);
+            Pointer obj = mm.alloc(mm.pointerIndexedObjectSize(2));
+            list = mm.popPointer();
+            obj.$().marker(MM.MARKER);
+            obj.$().kind(ObjectKind.POINTER_INDEXED);
+            obj.$().gcState(GCState.NORMAL);
+            obj.$().size(2);
+            obj.$p().field(0, list);
+            obj.$p().field(1, mm.smallInteger(i));
+            list = obj;
+        }
+        mm.pushPointer(list);
+
+        // garbage until the cycle starts
+        while (!gc.collecting()) {
+            mm.alloc(mm.pointerIndexedObjectSize(0));
+        }
+
+        // the head was copied with the roots, the rest is reached through the read barrier
+        Pointer obj = mm.popPointer();
+        mm.pushPointer(obj);
+        for (int i = 4; i >= 0; i--) {
+            assertEquals(MM.MARKER, obj.$().marker());
+            assertEquals(GCState.NORMAL, obj.$().gcState());
+            assertEquals(i, MM.untagSmallInteger(obj.$p().field(1).address));
+            assertTrue(obj.address >= 200);
+            obj = obj.$p().field(0);
+        }
+        assertTrue(obj.isNull());
+        assertTrue(gc.collecting());
+
+        while (gc.collecting()) {
+            mm.alloc(mm.pointerIndexedObjectSize(0));
+        }
+
+        obj = mm.popPointer();
+        for (int i = 4; i >= 0; i--) {
+            assertEquals(i, MM.untagSmallInteger(obj.$p().field(1).address));
+            obj = obj.$p().field(0);
+        }
+        assertTrue(obj.isNull());
+    }
+
+    @Test
+    public void testDirectStorage() {
+        MM mm = new MM(1024, new DirectStorage(MM.METASPACE_SIZE + 90), 1024, new MarkCompactGC());
+
+        // garbage
+        mm.alloc(20);
+
+        Pointer root1 = mm.alloc(mm.pointerIndexedObjectSize(1));
+        root1.$().marker(MM.MARKER);
+        root1.$().kind(ObjectKind.POINTER_INDEXED);
+        root1.$().gcState(GCState.NORMAL);
+        root1.$().size(1);
+        mm.pushPointer(root1);
+
+        Pointer obj1 = mm.alloc(mm.byteIndexedObjectSize(4));
+        obj1.$().marker(MM.MARKER);
+        obj1.$().kind(ObjectKind.BYTE_INDEXED);
+        obj1.$().gcState(GCState.NORMAL);
+        obj1.$().size(4);
+        obj1.$b().bytes("test".getBytes());
+        root1.$p().field(0, obj1);
+
+        mm.alloc(50);
+
+        root1 = mm.popPointer();
+
+        assertEquals(MM.METASPACE_SIZE, root1.address);
+        assertEquals(MM.MARKER, root1.$().marker());
+        assertEquals(ObjectKind.POINTER_INDEXED, root1.$().kind());
+        assertEquals("test", bytes2str(root1.$p().field(0).$b().bytes()));
+    }
+
+    @Test
+    public void testRawStackWords() {
+        MM mm = new MM(1024, 90, 1024, new MarkCompactGC());
+
+        // garbage
+        mm.alloc(20);
+
+        Pointer root = mm.alloc(mm.pointerIndexedObjectSize(1));
+        root.$().marker(MM.MARKER);
+        root.$().kind(ObjectKind.POINTER_INDEXED);
+        root.$().gcState(GCState.NORMAL);
+        root.$().size(1);
+
+        // integer equal to the address of the object, e.g. a field index
+        mm.pushInt(root.address);
+        mm.pushPointer(root);
+
+        mm.alloc(60);
+
+        assertEquals(MM.METASPACE_SIZE, mm.popPointer().address);
+        assertEquals(MM.METASPACE_SIZE + 20, mm.popInt());
+    }
+
+    @Test
+    public void testLargeObjectSpace() {
+        BakerGC gc = new BakerGC();
+        gc.largeObjects(120, 40);
+        MM mm = new MM(1024, 320, 1024, gc);
+
+        Pointer root = mm.alloc(mm.pointerIndexedObjectSize(1));
+        root.$().marker(MM.MARKER);
+        root.$().kind(ObjectKind.POINTER_INDEXED);
+        root.$().gcState(GCState.NORMAL);
+        root.$().size(1);
+        mm.pushPointer(root);
+
+        Pointer large = mm.alloc(mm.byteIndexedObjectSize(40));
+        large.$().marker(MM.MARKER);
+        large.$().kind(ObjectKind.BYTE_INDEXED);
+        large.$().gcState(GCState.NORMAL);
+        large.$().size(40);
+        large.$b().bytes("0123456789012345678901234567890123456789".getBytes());
+        root.$p().field(0, large);
+        assertEquals(MM.METASPACE_SIZE, large.address);
+
+        // garbage
+        Pointer garbage = mm.alloc(mm.byteIndexedObjectSize(40));
+        garbage.$().marker(MM.MARKER);
+        assertEquals(MM.METASPACE_SIZE + 52, garbage.address);
+
+        gc.collect();
+
+        root = mm.popPointer();
+        assertEquals(MM.METASPACE_SIZE + 220, root.address);
+        assertEquals(MM.METASPACE_SIZE, root.$p().field(0).address);
+        assertEquals(GCState.NORMAL, root.$p().field(0).$().gcState());
+        assertEquals("0123456789012345678901234567890123456789", bytes2str(root.$p().field(0).$b().bytes()));
+
+        // the block of the garbage is free again
+        assertEquals(MM.METASPACE_SIZE + 52, mm.alloc(mm.byteIndexedObjectSize(40)).address);
+    }
+
+    @Test
+    public void testBackgroundClearing() {
+        int clearers = threads("Heap clearer");
+        BakerGC gc = new BakerGC();
+        gc.clearInBackground();
+        MM mm = new MM(1024, 2048, 1024, gc);
+        ClausVM vm = new ClausVM(mm);
+
+        Pointer root = vm.newArray(1);
+        root.$p().field(0, vm.newString(str2bytes("root")));
+        mm.pushPointer(root);
+
+        // new objects take memory of the garbage, their fields are NULL once it is cleared
+        for (int i = 0; i < 200; i++) {
+            Pointer arr = vm.newArray(10);
+            for (int j = 0; j < 10; j++) {
+                assertTrue(arr.$p().field(j).isNull());
+                arr.$p().field(j, vm.newInteger(i));
+            }
+        }
+
+        root = mm.popPointer();
+        assertEquals("root", bytes2str(root.$p().field(0).$b().bytes()));
+
+        // from-space is cleared by the collections after shutdown
+        mm.shutdown();
+        assertEquals(clearers, threads("Heap clearer"));
+        mm.pushPointer(root);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(vm.newArray(10).$p().field(0).isNull());
+        }
+        assertEquals("root", bytes2str(mm.popPointer().$p().field(0).$b().bytes()));
+    }
+
+    @Test
+    public void testGCEvents() {
+        BakerGC gc = new BakerGC();
+        MM mm = new MM(1024, 400, 1024, gc);
+        GCStatistics statistics = new GCStatistics();
+        mm.addGCListener(statistics);
+        final int[] counts = new int[6];
+        mm.addGCListener(new GCListener() {
+            @Override
+            public void collected(GCEvent event) {
+                counts[0] = event.roots();
+                counts[1] = event.survivors();
+                counts[2] = event.bytesCopied();
+                counts[3] = event.usedBefore();
+                counts[4] = event.usedAfter();
+                counts[5] = event.heapSize();
+            }
+        });
+
+        Pointer root = new Pointer(mm.allocObject(ObjectKind.POINTER_INDEXED, 1, mm.NULL), mm);
+        root.$p().field(0, new Pointer(mm.allocObject(ObjectKind.POINTER_INDEXED, 2, mm.NULL), mm));
+        mm.pushPointer(root);
+
+        // garbage
+        for (int i = 0; i < 8; i++) {
+            mm.allocObject(ObjectKind.POINTER_INDEXED, 2, mm.NULL);
+        }
+
+        gc.collect();
+
+        assertEquals(1, counts[0]);
+        assertEquals(2, counts[1]);
+        assertEquals(16 + 20, counts[2]);
+        assertEquals(16 + 20 + 8 * 20, counts[3]);
+        assertEquals(16 + 20, counts[4]);
+        assertEquals(400, counts[5]);
+
+        assertEquals(1, statistics.collections());
+        assertEquals(1, statistics.pauses("Baker").count());
+        assertEquals(0, statistics.pauses("Minor").count());
+        assertEquals(8 * 20, statistics.bytesFreed());
+    }
+
+    @Test
+    public void testHandleScopes() {
+        BakerGC gc = new BakerGC();
+        MM mm = new MM(1024, 2048, 1024, gc);
+        ClausVM vm = new ClausVM(mm);
+
+        int scope = mm.openHandleScope();
+        int arr = mm.newHandle(vm.newArray(1));
+        int str = mm.newHandle(vm.newString(str2bytes("handle")));
+        int address = mm.handle(arr).address;
+
+        gc.collect();
+        assertTrue(mm.handle(arr).address != address);
+        mm.handle(arr).$p().field(0, mm.handle(str));
+
+        gc.collect();
+        assertEquals("handle", bytes2str(mm.handle(arr).$p().field(0).$b().bytes()));
+
+        // slots of a closed scope are reused
+        mm.closeHandleScope(scope);
+        assertEquals(arr, mm.newHandle(mm.NULL));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testTooManyHandles() {
+        MM mm = new MM(1024, 2048, 1024);
+        mm.openHandleScope();
+        for (int i = 0; i <= MM.MAX_HANDLES; i++) {
+            mm.newHandle(mm.NULL);
+        }
+    }
+
+    @Test
+    public void testSyscallsUnderGC() throws IOException {
+        File file = File.createTempFile("lines", ".txt");
+        file.deleteOnExit();
+        FileWriter writer = new FileWriter(file);
+        for (int i = 0; i < 100; i++) {
+            writer.write("line " + i + "\n");
+        }
+        writer.close();
+
+        MM mm = new MM(1024, 600, 1024);
+        ClausVM vm = new ClausVM(mm);
+        GCStatistics statistics = new GCStatistics();
+        mm.addGCListener(statistics);
+
+        mm.pushPointer(vm.newString(str2bytes(file.getPath())));
+        vm.syscall(Syscalls.calls2ints.get("open-file-r")).call();
+        Pointer input = mm.popPointer();
+
+        // every syscall allocates, some of the calls are interrupted by GC
+        for (int i = 0; i < 100; i++) {
+            mm.pushPointer(vm.newString(str2bytes("!")));
+            mm.pushPointer(input);
+            vm.syscall(Syscalls.calls2ints.get("read-line")).call();
+            vm.syscall(Syscalls.calls2ints.get("str-append")).call();
+            Pointer line = mm.popPointer();
+            assertEquals("line " + i + "!", bytes2str(line.$b().bytes()));
+
+            mm.pushPointer(line);
+            vm.syscall(Syscalls.calls2ints.get("str-length")).call();
+            assertEquals(("line " + i + "!").length(), vm.intValue(mm.popPointer()));
+
+            mm.pushPointer(vm.newArray(i % 10));
+            vm.syscall(Syscalls.calls2ints.get("arr-length")).call();
+            assertEquals(i % 10, vm.intValue(mm.popPointer()));
+        }
+
+        mm.pushPointer(input);
+        vm.syscall(Syscalls.calls2ints.get("close-file-r")).call();
+        assertTrue(statistics.collections() > 0);
+    }
+
+    @Test
+    public void testStrSplit() {
+        MM mm = new MM(1024, 2048, 1024);
+        ClausVM vm = new ClausVM(mm);
+        ClausVM.Syscall split = vm.syscall(Syscalls.calls2ints.get("str-split"));
+
+        // some of the splits are interrupted by GC
+        for (int i = 0; i < 50; i++) {
+            mm.pushPointer(vm.newString(str2bytes("a bb ccc dddd")));
+            split.call();
+            Pointer arr = mm.popPointer();
+            assertEquals(4, arr.$().size());
+            assertEquals("a", bytes2str(arr.$p().field(0).$b().bytes()));
+            assertEquals("dddd", bytes2str(arr.$p().field(3).$b().bytes()));
+        }
+    }
+
+    @Test
+    public void testIncrementalSyscalls() {
+        // live data takes most of a semispace
+        IncrementalBakerGC gc = new IncrementalBakerGC(1);
+        MM mm = new MM(1024, 1050, 1024, gc);
+        ClausVM vm = new ClausVM(mm);
+        GCStatistics statistics = new GCStatistics();
+        mm.addGCListener(statistics);
+        ClausVM.Syscall split = vm.syscall(Syscalls.calls2ints.get("str-split"));
+        ClausVM.Syscall append = vm.syscall(Syscalls.calls2ints.get("str-append"));
+
+        // the splits stay live for a few cycles, their parts are loaded through the read barrier while a cycle runs
+        int scope = mm.openHandleScope();
+        int root = mm.newHandle(vm.newArray(4));
+        for (int i = 0; i < 300; i++) {
+            mm.pushPointer(vm.newString(str2bytes("a bb ccc dddd")));
+            split.call();
+            mm.handle(root).$p().field(i % 4, mm.popPointer());
+
+            Pointer old = mm.handle(root).$p().field((i + 1) % 4);
+            if (!old.isNull()) {
+                mm.pushPointer(old.$p().field(0));
+                mm.pushPointer(old.$p().field(3));
+                append.call();
+                assertEquals("dddda", bytes2str(mm.popPointer().$b().bytes()));
+            }
+        }
+        mm.closeHandleScope(scope);
+
+        assertTrue(statistics.collections() > 10);
+    }
+
+    @Test
+    public void testMetaspace() {
+        BakerGC gc = new BakerGC();
+        MM mm = new MM(1024, 2048, 1024, gc);
+        ClausVM vm = new ClausVM(mm);
+        GCStatistics statistics = new GCStatistics();
+        mm.addGCListener(statistics);
+
+        Pointer array = vm.getClazz("Array");
+        int address = array.address;
+        assertTrue(mm.inMetaspace(address));
+        mm.pushPointer(vm.newArray(1));
+
+        gc.collect();
+
+        // classes are neither roots nor copied
+        assertEquals(address, vm.getClazz("Array").address);
+        assertEquals(address, mm.popPointer().$().clazz().address);
+        assertEquals(1, statistics.roots());
+        assertEquals(1, statistics.survivors());
+
+        try {
+            array.$p().field(0, vm.newString(str2bytes("heap")));
+            fail();
+        } catch (RuntimeException e) {
+            // metaspace is not scanned
+        }
+    }
+
+    @Test
+    public void testMetaspaceSize() {
+        MM mm = new MM(1024, 2048, 1024, new BakerGC(), 8 * MM.METASPACE_SIZE);
+        ClausVM vm = new ClausVM(mm);
+
+        // more classes than the default metaspace holds
+        for (int i = 0; i < 500; i++) {
+            assertTrue(mm.inMetaspace(vm.newClazz("Class" + i).address));
+        }
+        // the metaspace is added to the heap
+        assertEquals(2048, mm.heapSize());
+
+        try {
+            ClausVM small = new ClausVM(new MM(1024, 2048, 1024));
+            for (int i = 0; i < 500; i++) {
+                small.newClazz("Class" + i);
+            }
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Metaspace full!", e.getMessage());
+        }
+    }
+
     @Test
     public void testGC() {
         MM mm = new MM(1024, 800, 1024);
@@ -303,16 +1038,107 @@ public class GCTest {
         vm.run(entryPoint);
     }
 
+    @Test
+    public void testMarkStackOverflow() {
+        MarkCompactGC gc = new MarkCompactGC();
+        MM mm = new MM(1024, 200000, 1024, gc);
+        ClausVM vm = new ClausVM(mm);
+
+        // more objects reachable from one array than the mark stack holds
+        Pointer root = vm.newArray(3000);
+        mm.pushPointer(root);
+        for (int i = 0; i < 3000; i++) {
+            // garbage
+            vm.newString(str2bytes("garbage"));
+
+            Pointer arr = vm.newArray(1);
+            root.$p().field(i, arr);
+            arr.$p().field(0, vm.newInteger(Util.int2bytes(i)));
+        }
+
+        gc.collect();
+
+        root = mm.popPointer();
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(i, Util.bytes2int(root.$p().field(i).$p().field(0).$b().bytes()));
+        }
+    }
+
+    @Test
+    public void testCollectionsAllocateNothing() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+
+        // the first round loads and compiles the code
+        for (int round = 0; round < 2; round++) {
+            BakerGC baker = new BakerGC();
+            baker.largeObjects(20000, 100);
+            GCPolicy[] policies = new GCPolicy[]{baker, new MarkCompactGC(), new GenerationalGC(20000),
+                    new ParallelCopyingGC(3)};
+
+            for (GCPolicy gc : policies) {
+                MM mm = new MM(1024, 400000, 1024, gc);
+                ClausVM vm = new ClausVM(mm);
+                // the calling thread and the workers of the parallel collector
+                long[] ids = threadIds("GC worker");
+
+                // more objects than the mark stack of mark-compact holds, large objects and old ones
+                Pointer root = vm.newArray(3000);
+                mm.pushPointer(root);
+                for (int i = 0; i < 3000; i++) {
+                    Pointer arr = vm.newArray(i % 100 == 0 ? 30 : 1);
+                    root.$p().field(i, arr);
+                    arr.$p().field(0, vm.newInteger(Util.int2bytes(i)));
+                }
+
+                long before = allocatedBytes(threads, ids);
+                gc.collect();
+                long allocated = allocatedBytes(threads, ids) - before;
+                if (round == 1) {
+                    assertEquals(0, allocated);
+                }
+                mm.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return IDs of the current thread and of the live threads with names starting by the name
+     */
+    private long[] threadIds(String name) {
+        List<Long> ids = new ArrayList<Long>();
+        ids.add(Thread.currentThread().getId());
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(name) && thread.isAlive()) {
+                ids.add(thread.getId());
+            }
+        }
+
+        long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threads, long[] ids) {
+        long bytes = 0;
+        for (long id : ids) {
+            bytes += Math.max(0, threads.getThreadAllocatedBytes(id));
+        }
+        return bytes;
+    }
+
     @Test
     public void testGCInCycle() {
         MM mm = new MM(1024, 2048, 1024);
         ClausVM vm = new ClausVM(mm);
 
-        boolean first = true;
+        // classes are in the metaspace, two arrays fit into a semispace
+        int[] addresses = new int[]{0, 412, 1024, 1436};
         for (int i = 0; i < 100; i++) {
             Pointer p = vm.newArray(100);
-            assertEquals(first ? 355 : 1379, p.address);
-            first = !first;
+            assertEquals(MM.METASPACE_SIZE + addresses[i % 4], p.address);
         }
     }
 
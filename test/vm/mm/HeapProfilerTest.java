@@ -0,0 +1,73 @@
+package vm.mm;
+
+import org.junit.Test;
+import vm.ClausVM;
+import vm.Util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+import static vm.Util.str2bytes;
+
+public class HeapProfilerTest {
+
+    @Test
+    public void sites() {
+        MM mm = new MM(1024, 1024, 1024);
+        ClausVM vm = new ClausVM(mm);
+        HeapProfiler profiler = new HeapProfiler(1);
+        mm.profiler(profiler);
+
+        String[] entryPointBC = new String[]{
+                "new-arr " + mm.addConstant(2),
+                "pop-ref",
+                "new-str " + mm.addConstant("test"),
+                "pop-ref",
+                "return"
+        };
+        vm.run(mm.storeCode(Util.translateBytecode(entryPointBC)));
+
+        String json = dump(profiler);
+        assertTrue(json.contains("{\"method\": \"<program>\", \"offset\": 0, \"class\": \"Array\", \"samples\": 1, "
+                + "\"bytes\": 20}"));
+        assertTrue(json.contains("{\"method\": \"<program>\", \"offset\": 6, \"class\": \"String\", \"samples\": 1, "
+                + "\"bytes\": 16}"));
+        assertTrue(json.contains("\"allocated\": {\"objects\": 2, \"bytes\": 36}"));
+    }
+
+    @Test
+    public void survivors() {
+        BakerGC gc = new BakerGC();
+        MM mm = new MM(1024, 2048, 1024, gc);
+        ClausVM vm = new ClausVM(mm);
+        HeapProfiler profiler = new HeapProfiler(0);
+        mm.profiler(profiler);
+
+        Pointer root = vm.newArray(2);
+        mm.pushPointer(root);
+        root.$p().field(0, vm.newString(str2bytes("live")));
+        root.$p().field(1, vm.newString(str2bytes("live")));
+
+        // garbage
+        for (int i = 0; i < 10; i++) {
+            vm.newString(str2bytes("garbage"));
+        }
+        assertEquals(12, profiler.objects("String"));
+
+        gc.collect();
+        assertEquals(2, profiler.objects("String"));
+
+        String json = dump(profiler);
+        // array, two strings and ten strings of garbage
+        assertTrue(json.contains("{\"allocatedBytes\": " + (20 + 2 * 16 + 10 * 20) + ", \"survivors\": "));
+        assertTrue(json.contains("{\"class\": \"String\", \"objects\": 2, \"bytes\": 32}"));
+    }
+
+    private String dump(HeapProfiler profiler) {
+        StringWriter json = new StringWriter();
+        profiler.dump(new PrintWriter(json));
+        return json.toString();
+    }
+
+}
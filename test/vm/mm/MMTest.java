@@ -8,7 +8,7 @@ import vm.Util;
 import java.util.Arrays;
 
 import static junit.framework.Assert.assertEquals;
-import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertFalse;
 import static vm.Util.*;
 
 public class MMTest {
@@ -27,11 +27,96 @@ public class MMTest {
         byte[] bytes = new byte[]{(byte) 0x01, (byte) 0x02, (byte) 0x03, (byte) 0x04, (byte) 0x05, (byte) 0x06};
         CodePointer p = mm.storeCode(bytes);
 
-        mm.setPC(p);
-        assertEquals(bytes[0], mm.getByteFromBC());
+        int pc = mm.instructionIndex(p);
+        int[] instructions = mm.instructions();
+        assertEquals(bytes[0], instructions[pc++]);
         byte[] intBytes = Arrays.copyOfRange(bytes, 1, 5);
-        assertEquals(Util.bytes2int(intBytes), mm.getIntFromBC());
-        assertEquals(bytes[5], mm.getByteFromBC());
+        assertEquals(Util.bytes2int(intBytes), instructions[pc++]);
+        assertEquals(bytes[5], instructions[pc]);
+    }
+
+    @Test
+    public void decodedJumps() {
+        CodePointer p = mm.storeCode(Util.translateBytecode(new String[]{
+                "jmp " + (MM.INSTR_SIZE + MM.WORD_SIZE),
+                "push-int 1",
+                "push-int 2",
+                "jmp -" + (3 * MM.INSTR_SIZE + 3 * MM.WORD_SIZE)
+        }));
+
+        int pc = mm.instructionIndex(p);
+        int[] instructions = mm.instructions();
+        assertEquals(pc + 4, instructions[pc + 1]);
+        assertEquals(pc + 2, instructions[pc + 7]);
+    }
+
+    @Test
+    public void symbols() {
+        int add = mm.symbol("add");
+        int index = mm.addConstant("add");
+
+        assertEquals(add, mm.symbol("add"));
+        assertEquals(add, mm.constantSymbol(index));
+        assertFalse(add == mm.symbol("length"));
+        assertEquals("length", mm.symbolName(mm.symbol("length")));
+    }
+
+    @Test
+    public void header() {
+        Pointer str = vm.newString(str2bytes("three"));
+        Pointer integer = vm.newInteger(int2bytes(3));
+
+        // header word + size word + class + bytes padded to a word
+        assertEquals(MM.HEADER_SIZE + 8, integer.address - str.address);
+        assertEquals(0, str.address % MM.WORD_SIZE);
+        assertEquals(MM.MARKER, str.$().marker());
+        assertEquals(ObjectKind.BYTE_INDEXED, str.$().kind());
+        assertEquals(GCState.NORMAL, str.$().gcState());
+        assertEquals(5, str.$().size());
+        assertEquals("three", bytes2str(str.$b().bytes()));
+
+        str.$().gcState(GCState.REMEMBERED);
+        str.$().size(MM.MAX_OBJECT_SIZE);
+        assertEquals(ObjectKind.BYTE_INDEXED, str.$().kind());
+        assertEquals(GCState.REMEMBERED, str.$().gcState());
+        assertEquals(MM.MAX_OBJECT_SIZE, str.$().size());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void objectTooBig() {
+        vm.newArray(MM.MAX_OBJECT_SIZE + 1);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void objectBytesTooBig() {
+        mm.pointerIndexedObjectSize(MM.MAX_OBJECT_SIZE / MM.REF_SIZE);
+    }
+
+    @Test
+    public void largeObjects() {
+        BakerGC gc = new BakerGC();
+        MM mm = new MM(1024, 2 * 1024 * 1024, 1024, gc);
+        ClausVM vm = new ClausVM(mm);
+
+        byte[] bytes = new byte[100000];
+        Arrays.fill(bytes, (byte) 'a');
+        bytes[99999] = 'z';
+        Pointer str = vm.newString(bytes);
+        mm.pushPointer(str);
+        Pointer arr = vm.newArray(50000);
+        arr.$p().field(49999, vm.newInteger(int2bytes(49999)));
+        mm.pushPointer(arr);
+
+        gc.collect();
+
+        arr = mm.popPointer();
+        str = mm.popPointer();
+        assertEquals(100000, str.$().size());
+        assertEquals(MM.HEADER_SIZE + 100000, mm.objectSize(str.address));
+        assertEquals('z', str.$b().bytes()[99999]);
+        assertEquals(50000, arr.$().size());
+        assertEquals(MM.HEADER_SIZE + 50000 * MM.REF_SIZE, mm.objectSize(arr.address));
+        assertEquals(49999, bytes2int(arr.$p().field(49999).$b().bytes()));
     }
 
     @Test
@@ -100,7 +185,7 @@ public class MMTest {
         assertEquals(852, bytes2int(mm.local(1).$b().bytes()));
         assertEquals(999, bytes2int(mm.local(2).$b().bytes()));
 
-        assertNull(mm.discardFrame());
+        assertEquals(MM.END_OF_PROGRAM, mm.discardFrame());
     }
 
 
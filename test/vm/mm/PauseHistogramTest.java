@@ -0,0 +1,51 @@
+package vm.mm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PauseHistogramTest {
+
+    @Test
+    public void smallValuesAreExact() {
+        PauseHistogram histogram = new PauseHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(100, histogram.count());
+        assertEquals(1, histogram.min());
+        assertEquals(100, histogram.max());
+        assertEquals(50.5, histogram.mean(), 0);
+        assertEquals(50, histogram.percentile(50));
+        assertEquals(99, histogram.percentile(99));
+        assertEquals(100, histogram.percentile(100));
+    }
+
+    @Test
+    public void percentiles() {
+        PauseHistogram histogram = new PauseHistogram();
+        for (int i = 0; i < 990; i++) {
+            histogram.record(1000000);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(50000000);
+        }
+
+        // highest value of the bucket, within 1/64 of the recorded value
+        long median = histogram.percentile(50);
+        assertTrue(median >= 1000000 && median < 1000000 + 1000000 / 64);
+        assertEquals(median, histogram.percentile(99));
+        // capped by the exact maximum
+        assertEquals(50000000, histogram.percentile(99.9));
+    }
+
+    @Test
+    public void largestValue() {
+        PauseHistogram histogram = new PauseHistogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.percentile(100));
+    }
+
+}
@@ -0,0 +1,85 @@
+package vm.mm;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+
+public class StorageTest {
+
+    @Test
+    public void ints() {
+        HeapStorage[] storages = new HeapStorage[]{new ArrayStorage(64), new DirectStorage(64), new DirectStorage(64, 4)};
+        for (HeapStorage storage : storages) {
+            storage.putInt(12, 0x01020304);
+            storage.putInt(16, -2);
+
+            assertEquals(0x01020304, storage.getInt(12));
+            assertEquals(-2, storage.getInt(16));
+            // big-endian
+            assertEquals(1, storage.get(12));
+            assertEquals(4, storage.get(15));
+        }
+    }
+
+    @Test
+    public void chunks() {
+        // chunks of 16 B
+        DirectStorage storage = new DirectStorage(100, 4);
+        byte[] bytes = new byte[40];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+
+        storage.put(10, bytes, bytes.length);
+        byte[] read = new byte[40];
+        storage.get(10, read, read.length);
+        for (int i = 0; i < bytes.length; i++) {
+            assertEquals(i, read[i]);
+        }
+
+        storage.fill(30, 40, (byte) -1);
+        assertEquals(19, storage.get(29));
+        assertEquals(-1, storage.get(30));
+        assertEquals(-1, storage.get(69));
+        assertEquals(0, storage.get(70));
+
+        // the last chunk is shorter
+        storage.putInt(96, 7);
+        assertEquals(7, storage.getInt(96));
+    }
+
+    @Test
+    public void overlappingCopies() {
+        DirectStorage storage = new DirectStorage(100, 4);
+        for (int i = 0; i < 100; i++) {
+            storage.put(i, (byte) i);
+        }
+
+        // towards the end and back over chunk boundaries
+        storage.copy(5, 23, 40);
+        for (int i = 0; i < 40; i++) {
+            assertEquals(5 + i, storage.get(23 + i));
+        }
+        storage.copy(23, 3, 40);
+        for (int i = 0; i < 40; i++) {
+            assertEquals(5 + i, storage.get(3 + i));
+        }
+    }
+
+    @Test
+    public void resize() {
+        DirectStorage storage = new DirectStorage(40, 4);
+        storage.putInt(32, 42);
+        storage.putInt(4, 5);
+
+        storage.resize(100);
+        assertEquals(100, storage.size());
+        assertEquals(42, storage.getInt(32));
+        assertEquals(5, storage.getInt(4));
+        storage.putInt(96, 1);
+
+        storage.resize(36);
+        assertEquals(42, storage.getInt(32));
+    }
+
+}